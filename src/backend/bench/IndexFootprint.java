@@ -0,0 +1,83 @@
+package backend.bench;
+
+import backend.tracker.FileOwnershipIndex;
+import backend.tracker.PeerIdTable;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Measures the heap taken by the tracker's file ownership index per
+ * (file, owner) pair, next to the HashMap of HashSets of IP strings it
+ * replaced. Run with a heap large enough for both catalogs, e.g.
+ * java -Xmx4g backend.bench.IndexFootprint 1000000 4 2000
+ *
+ * @author hexbioc
+ */
+public class IndexFootprint {
+
+    public static void main(String args[]) {
+
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int ownersPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int peerCount = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        String peers[] = new String[peerCount];
+        for (int i = 0; i < peerCount; i++) {
+            peers[i] = "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF);
+        }
+
+        long baseline = usedHeap();
+        PeerIdTable peerIds = new PeerIdTable();
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        for (int f = 0; f < fileCount; f++) {
+            String fileName = "file-" + f + ".dat";
+            for (int o = 0; o < ownersPerFile; o++) {
+                index.addOwner(fileName, peerIds.intern(peers[(f + o * 7) % peerCount]), f);
+            }
+        }
+        long indexBytes = usedHeap() - baseline;
+        report("FileOwnershipIndex", indexBytes, fileCount, ownersPerFile);
+        if (index.getFileCount() != fileCount) {
+            throw new IllegalStateException();
+        }
+        index = null;
+        peerIds = null;
+
+        baseline = usedHeap();
+        HashMap<String, HashSet<String>> ownership = new HashMap<>();
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (int f = 0; f < fileCount; f++) {
+            String fileName = "file-" + f + ".dat";
+            HashSet<String> owners = new HashSet<>();
+            for (int o = 0; o < ownersPerFile; o++) {
+                //Every connection produced its own copy of the address string
+                owners.add(new String(peers[(f + o * 7) % peerCount]));
+            }
+            ownership.put(fileName, owners);
+            sizes.put(fileName, (long) f);
+        }
+        long mapBytes = usedHeap() - baseline;
+        report("HashMap<String, HashSet<String>>", mapBytes, fileCount, ownersPerFile);
+        if (ownership.size() != fileCount || sizes.size() != fileCount) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static void report(String name, long bytes, int fileCount, int ownersPerFile) {
+        System.out.printf("%-34s %,14d bytes  %7.1f bytes/file  %6.1f bytes/(file, owner)%n",
+                name, bytes, (double) bytes / fileCount, (double) bytes / ((long) fileCount * ownersPerFile));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
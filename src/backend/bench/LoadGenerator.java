@@ -0,0 +1,664 @@
+package backend.bench;
+
+import backend.tracker.LatencyHistogram;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates thousands of peers against a running tracker, speaking the same
+ * control protocol as backend.peer.Peer: full and delta file lists,
+ * heartbeats, file requests, and COMMUNICATE_WITH_PEER answered with
+ * UPLOAD_COMPLETE after a simulated upload. No file data is moved; only the
+ * tracker is under test. All peers share one selector thread, each bound to
+ * its own loopback address (127.0.x.y) so that the tracker tells them apart,
+ * which means the generator must run on the tracker's machine.
+ *
+ * Options are given as key=value:
+ *   tracker=127.0.0.1:8080  the tracker to load
+ *   metrics=8090            its metrics port, scraped for resource use; 0 skips it
+ *   peers=2000              simulated peers
+ *   catalog=100000          distinct file names
+ *   files=50                files shared by each peer
+ *   rate=500                file requests per second, over all peers
+ *   churn=2                 peers per second that leave and come back as new peers
+ *   deltas=20               file list changes per second, over all peers
+ *   upload=50               milliseconds a source takes to "upload" its share
+ *   duration=60             seconds to run
+ *
+ * For example: java backend.bench.LoadGenerator peers=5000 rate=2000 duration=120
+ *
+ * @author hexbioc
+ */
+public class LoadGenerator {
+
+    /*TRACKER COMMANDS*/
+    private static final byte SEND_FILE_LIST = 1;
+    private static final byte SEND_PEER_STATUS = 2;
+    private static final byte COMMUNICATE_WITH_PEER = 3;
+    private static final byte FILE_REQUEST_REPLY = 4;
+    /*PEER STATUS*/
+    private static final byte STATE_IDLE = 0;
+    private static final byte STATE_FILE_LIST_UPDATED = 1;
+    private static final byte STATE_FILE_REQUIRED = 2;
+    private static final byte STATE_TERMINATE = 3;
+    private static final byte STATE_UPLOAD_COMPLETE = 4;
+    private static final byte FILE_AVAILABLE = 1;
+    /*FILE LISTS*/
+    private static final byte LIST_FULL = 0;
+    private static final byte LIST_DELTA = 1;
+    private static final byte CHANGE_ADD = 0;
+
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long REPORT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    //A download still missing uploads after this long is given up on
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final class SimPeer {
+
+        final String address;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer inbound;
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        //Bumped on every reconnection so that late events for the old connection are ignored
+        int generation;
+        long listEpoch;
+        long listVersion;
+        final LinkedHashSet<String> files = new LinkedHashSet<>();
+        /*CURRENT DOWNLOAD*/
+        boolean downloading;
+        int requestSerial;
+        long requestSentAt;
+        //-1 until the tracker has answered the request
+        int sourcesExpected;
+        int sourcesDone;
+
+        SimPeer(String address) {
+            this.address = address;
+        }
+    }
+
+    //A simulated upload finishing at its due time
+    private static final class Upload {
+
+        final long due;
+        final SimPeer source;
+        final int sourceGeneration;
+        final SimPeer asking;
+        final int askingSerial;
+        final long requestId;
+
+        Upload(long due, SimPeer source, SimPeer asking, long requestId) {
+            this.due = due;
+            this.source = source;
+            this.sourceGeneration = source.generation;
+            this.asking = asking;
+            this.askingSerial = asking.requestSerial;
+            this.requestId = requestId;
+        }
+    }
+
+    private final InetSocketAddress tracker;
+    private final int metricsPort;
+    private final int catalogSize;
+    private final int filesPerPeer;
+    private final double requestRate;
+    private final double churnRate;
+    private final double deltaRate;
+    private final long uploadNanos;
+    private final long durationNanos;
+
+    private final Selector selector;
+    private final SimPeer peers[];
+    private final HashMap<String, SimPeer> peersByAddress;
+    private final PriorityQueue<Upload> uploads;
+    private final Random random;
+
+    /*MEASUREMENTS; RESET AFTER EVERY REPORT EXCEPT THE TOTALS*/
+    private LatencyHistogram replyLatency;
+    private LatencyHistogram dispatchLatency;
+    private LatencyHistogram completionLatency;
+    private final LatencyHistogram totalReplyLatency;
+    private final LatencyHistogram totalCompletionLatency;
+    private long requestsSent;
+    private long repliesReceived;
+    private long unavailable;
+    private long completed;
+    private long stalled;
+    private long skipped;
+    private long churned;
+    private long listChanges;
+    private long totalRequests;
+    private long totalCompleted;
+    private long totalStalled;
+    private long connectFailures;
+    private long bytesIn;
+    private long bytesOut;
+    //Tracker CPU time at the previous report, for its CPU use over the interval
+    private double lastTrackerCpu;
+
+    private LoadGenerator(HashMap<String, String> options) throws IOException {
+        String trackerAddress = options.getOrDefault("tracker", "127.0.0.1:8080");
+        int colon = trackerAddress.lastIndexOf(':');
+        tracker = new InetSocketAddress(trackerAddress.substring(0, colon), Integer.parseInt(trackerAddress.substring(colon + 1)));
+        metricsPort = Integer.parseInt(options.getOrDefault("metrics", String.valueOf(tracker.getPort() + 10)));
+        int peerCount = Integer.parseInt(options.getOrDefault("peers", "2000"));
+        catalogSize = Integer.parseInt(options.getOrDefault("catalog", "100000"));
+        filesPerPeer = Integer.parseInt(options.getOrDefault("files", "50"));
+        requestRate = Double.parseDouble(options.getOrDefault("rate", "500"));
+        churnRate = Double.parseDouble(options.getOrDefault("churn", "2"));
+        deltaRate = Double.parseDouble(options.getOrDefault("deltas", "20"));
+        uploadNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.getOrDefault("upload", "50")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+
+        selector = Selector.open();
+        random = new Random(42);
+        peers = new SimPeer[peerCount];
+        peersByAddress = new HashMap<>();
+        for (int i = 0; i < peerCount; i++) {
+            //Skip 127.0.0.0 and 127.0.0.1, which a real peer on this machine would use
+            int n = i + 2;
+            peers[i] = new SimPeer("127." + (n >> 16 & 0xff) + "." + (n >> 8 & 0xff) + "." + (n & 0xff));
+            peersByAddress.put(peers[i].address, peers[i]);
+        }
+        uploads = new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+
+        replyLatency = new LatencyHistogram();
+        dispatchLatency = new LatencyHistogram();
+        completionLatency = new LatencyHistogram();
+        totalReplyLatency = new LatencyHistogram();
+        totalCompletionLatency = new LatencyHistogram();
+    }
+
+    public static void main(String args[]) throws IOException {
+        HashMap<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Options are key=value; see the documentation of LoadGenerator");
+                return;
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws IOException {
+
+        System.out.printf("Connecting %d peers to %s; catalog %d, %d files each, %.0f requests/s, churn %.1f/s, %.0f list changes/s%n",
+                peers.length, tracker, catalogSize, filesPerPeer, requestRate, churnRate, deltaRate);
+        lastTrackerCpu = scrapeTracker().getOrDefault("process_cpu_seconds_total", 0.0);
+        for (SimPeer peer : peers) {
+            connect(peer, true);
+        }
+
+        long started = System.nanoTime();
+        long lastTick = started;
+        long lastSecond = started;
+        long lastHeartbeat = started;
+        long lastReport = started;
+        double requestsOwed = 0;
+        double churnOwed = 0;
+        double deltasOwed = 0;
+
+        while (true) {
+            selector.select(1);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                handle(key);
+            }
+
+            long now = System.nanoTime();
+            if (now - started >= durationNanos) {
+                break;
+            }
+            double elapsed = (now - lastTick) / 1e9;
+            lastTick = now;
+
+            requestsOwed += elapsed * requestRate;
+            while (requestsOwed >= 1) {
+                requestsOwed--;
+                requestFile(now);
+            }
+            churnOwed += elapsed * churnRate;
+            while (churnOwed >= 1) {
+                churnOwed--;
+                churn();
+            }
+            deltasOwed += elapsed * deltaRate;
+            while (deltasOwed >= 1) {
+                deltasOwed--;
+                changeFileList();
+            }
+            while (!uploads.isEmpty() && uploads.peek().due <= now) {
+                finishUpload(uploads.poll(), now);
+            }
+
+            if (now - lastSecond >= TimeUnit.SECONDS.toNanos(1)) {
+                lastSecond = now;
+                for (SimPeer peer : peers) {
+                    if (peer.downloading && now - peer.requestSentAt > STALL_NANOS) {
+                        peer.downloading = false;
+                        stalled++;
+                    }
+                }
+            }
+            if (now - lastHeartbeat >= HEARTBEAT_NANOS) {
+                lastHeartbeat = now;
+                for (SimPeer peer : peers) {
+                    if (peer.key != null && peer.channel.isConnected()) {
+                        send(peer, new byte[]{STATE_IDLE});
+                    }
+                }
+            }
+            if (now - lastReport >= REPORT_NANOS) {
+                report((now - lastReport) / 1e9, (now - started) / 1e9);
+                lastReport = now;
+            }
+        }
+
+        System.out.println();
+        System.out.println("Totals over " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s:");
+        System.out.printf("  requests %,d, completed %,d, stalled %,d, connect failures %,d%n", totalRequests, totalCompleted, totalStalled, connectFailures);
+        System.out.printf("  tracker reply   p50 %s  p99 %s  p99.9 %s  max %s%n", millis(totalReplyLatency.getQuantileNanos(0.5)),
+                millis(totalReplyLatency.getQuantileNanos(0.99)), millis(totalReplyLatency.getQuantileNanos(0.999)), millis(totalReplyLatency.getMaxNanos()));
+        System.out.printf("  request done    p50 %s  p99 %s  p99.9 %s  max %s%n", millis(totalCompletionLatency.getQuantileNanos(0.5)),
+                millis(totalCompletionLatency.getQuantileNanos(0.99)), millis(totalCompletionLatency.getQuantileNanos(0.999)), millis(totalCompletionLatency.getMaxNanos()));
+
+        for (SimPeer peer : peers) {
+            if (peer.key != null && peer.channel.isConnected()) {
+                send(peer, new byte[]{STATE_TERMINATE});
+            }
+            peer.channel.close();
+        }
+        selector.close();
+    }
+
+    private void connect(SimPeer peer, boolean firstTime) throws IOException {
+        peer.generation++;
+        peer.inbound = ByteBuffer.allocate(256);
+        peer.outbound.clear();
+        peer.downloading = false;
+        peer.listEpoch = random.nextLong() | 1;
+        peer.listVersion = 0;
+        if (firstTime || peer.files.isEmpty()) {
+            peer.files.clear();
+            while (peer.files.size() < Math.min(filesPerPeer, catalogSize)) {
+                peer.files.add(fileName(random.nextInt(catalogSize)));
+            }
+        }
+        peer.channel = SocketChannel.open();
+        peer.channel.configureBlocking(false);
+        peer.channel.bind(new InetSocketAddress(peer.address, 0));
+        peer.channel.connect(tracker);
+        peer.key = peer.channel.register(selector, SelectionKey.OP_CONNECT, peer);
+    }
+
+    private void handle(SelectionKey key) {
+        SimPeer peer = (SimPeer) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                peer.channel.finishConnect();
+                //Anything queued while connecting goes out now
+                flush(peer);
+                return;
+            }
+            if (key.isWritable()) {
+                flush(peer);
+            }
+            if (key.isReadable()) {
+                int read = peer.channel.read(peer.inbound);
+                if (read < 0) {
+                    //Tracker dropped the peer; come back like the real peer does
+                    reconnect(peer);
+                    return;
+                }
+                bytesIn += read;
+                peer.inbound.flip();
+                while (receive(peer)) {
+                    //Consume every complete command
+                }
+                peer.inbound.compact();
+                if (!peer.inbound.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(peer.inbound.capacity() * 2);
+                    peer.inbound.flip();
+                    larger.put(peer.inbound);
+                    peer.inbound = larger;
+                }
+            }
+        } catch (IOException ex) {
+            connectFailures++;
+            reconnect(peer);
+        }
+    }
+
+    private void reconnect(SimPeer peer) {
+        try {
+            peer.key.cancel();
+            peer.channel.close();
+            connect(peer, false);
+        } catch (IOException ex) {
+            connectFailures++;
+        }
+    }
+
+    //Handles one command from the tracker; returns false if it has not fully arrived
+    private boolean receive(SimPeer peer) throws IOException {
+        ByteBuffer in = peer.inbound;
+        if (!in.hasRemaining()) {
+            return false;
+        }
+        int start = in.position();
+        byte command = in.get();
+        switch (command) {
+            case SEND_FILE_LIST:
+                if (in.remaining() < 16) {
+                    in.position(start);
+                    return false;
+                }
+                in.getLong();
+                in.getLong();
+                sendFullList(peer);
+                return true;
+
+            case SEND_PEER_STATUS:
+                send(peer, new byte[]{STATE_IDLE});
+                return true;
+
+            case COMMUNICATE_WITH_PEER: {
+                String askingAddress = readUTF(in);
+                //The file asked for and the request id follow; a simulated source serves anything
+                if (askingAddress == null || readUTF(in) == null || in.remaining() < 8) {
+                    in.position(start);
+                    return false;
+                }
+                long requestId = in.getLong();
+                SimPeer asking = peersByAddress.get(askingAddress);
+                if (asking != null && asking.downloading) {
+                    dispatchLatency.record(System.nanoTime() - asking.requestSentAt);
+                    uploads.add(new Upload(System.nanoTime() + uploadNanos, peer, asking, requestId));
+                } else {
+                    //Asking peer gave up or churned; still free the source on the tracker
+                    send(peer, uploadComplete(requestId));
+                }
+                return true;
+            }
+
+            case FILE_REQUEST_REPLY: {
+                String fileName = readUTF(in);
+                if (fileName == null || !in.hasRemaining()) {
+                    in.position(start);
+                    return false;
+                }
+                boolean available = in.get() == FILE_AVAILABLE;
+                int sourceCount = 0;
+                if (available) {
+                    if (in.remaining() < 12) {
+                        in.position(start);
+                        return false;
+                    }
+                    sourceCount = in.getInt();
+                    in.getLong();
+                }
+                if (!peer.downloading) {
+                    return true;
+                }
+                long latency = System.nanoTime() - peer.requestSentAt;
+                replyLatency.record(latency);
+                totalReplyLatency.record(latency);
+                repliesReceived++;
+                if (!available) {
+                    unavailable++;
+                    peer.downloading = false;
+                } else {
+                    peer.sourcesExpected = sourceCount;
+                    checkDownloadDone(peer);
+                }
+                return true;
+            }
+
+            default:
+                throw new IOException("Unknown tracker command " + command);
+        }
+    }
+
+    private void requestFile(long now) throws IOException {
+        //Only idle, connected peers ask; give up on this slot if a few picks are all busy
+        for (int attempt = 0; attempt < 8; attempt++) {
+            SimPeer peer = peers[random.nextInt(peers.length)];
+            if (peer.downloading || !peer.channel.isConnected()) {
+                continue;
+            }
+            peer.downloading = true;
+            peer.requestSerial++;
+            peer.requestSentAt = now;
+            peer.sourcesExpected = -1;
+            peer.sourcesDone = 0;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(STATE_FILE_REQUIRED);
+            out.writeUTF(fileName(random.nextInt(catalogSize)));
+            send(peer, bytes.toByteArray());
+            requestsSent++;
+            totalRequests++;
+            return;
+        }
+        skipped++;
+    }
+
+    private void finishUpload(Upload upload, long now) {
+        if (upload.source.generation == upload.sourceGeneration && upload.source.channel.isConnected()) {
+            send(upload.source, uploadComplete(upload.requestId));
+        }
+        SimPeer asking = upload.asking;
+        if (asking.downloading && asking.requestSerial == upload.askingSerial) {
+            asking.sourcesDone++;
+            checkDownloadDone(asking);
+        }
+    }
+
+    private static byte[] uploadComplete(long requestId) {
+        return ByteBuffer.allocate(9).put(STATE_UPLOAD_COMPLETE).putLong(requestId).array();
+    }
+
+    private void checkDownloadDone(SimPeer peer) {
+        if (peer.sourcesExpected >= 0 && peer.sourcesDone >= peer.sourcesExpected) {
+            peer.downloading = false;
+            long latency = System.nanoTime() - peer.requestSentAt;
+            completionLatency.record(latency);
+            totalCompletionLatency.record(latency);
+            completed++;
+            totalCompleted++;
+        }
+    }
+
+    //A peer leaves, half of the time saying goodbye and half of the time just vanishing, and a new one takes its place
+    private void churn() throws IOException {
+        SimPeer peer = peers[random.nextInt(peers.length)];
+        if (peer.channel.isConnected() && random.nextBoolean()) {
+            send(peer, new byte[]{STATE_TERMINATE});
+        }
+        peer.key.cancel();
+        peer.channel.close();
+        connect(peer, true);
+        churned++;
+    }
+
+    //A random connected peer starts sharing another file and pushes the change
+    private void changeFileList() throws IOException {
+        SimPeer peer = peers[random.nextInt(peers.length)];
+        if (!peer.channel.isConnected() || peer.listVersion == 0) {
+            return;
+        }
+        String added = fileName(random.nextInt(catalogSize));
+        if (!peer.files.add(added)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(STATE_FILE_LIST_UPDATED);
+        out.write(LIST_DELTA);
+        out.writeLong(peer.listEpoch);
+        out.writeLong(peer.listVersion);
+        out.writeLong(++peer.listVersion);
+        out.writeInt(1);
+        out.write(CHANGE_ADD);
+        out.writeUTF(added);
+        out.writeLong(added.length());
+        send(peer, bytes.toByteArray());
+        listChanges++;
+    }
+
+    private void sendFullList(SimPeer peer) throws IOException {
+        //The version only counts changes; a fresh peer's list starts at 1
+        if (peer.listVersion == 0) {
+            peer.listVersion = 1;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + peer.files.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(STATE_FILE_LIST_UPDATED);
+        out.write(LIST_FULL);
+        out.writeLong(peer.listEpoch);
+        out.writeLong(-1);
+        out.writeLong(peer.listVersion);
+        out.writeInt(peer.files.size());
+        for (String file : peer.files) {
+            out.write(CHANGE_ADD);
+            out.writeUTF(file);
+            out.writeLong(file.length());
+        }
+        send(peer, bytes.toByteArray());
+    }
+
+    private void send(SimPeer peer, byte message[]) {
+        peer.outbound.add(ByteBuffer.wrap(message));
+        try {
+            flush(peer);
+        } catch (IOException ex) {
+            connectFailures++;
+            reconnect(peer);
+        }
+    }
+
+    private void flush(SimPeer peer) throws IOException {
+        if (!peer.channel.isConnected()) {
+            //Sent once the connection is up
+            return;
+        }
+        ByteBuffer head;
+        while ((head = peer.outbound.peek()) != null) {
+            bytesOut += peer.channel.write(head);
+            if (head.hasRemaining()) {
+                peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            peer.outbound.poll();
+        }
+        peer.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void report(double seconds, double elapsed) {
+        int connected = 0;
+        for (SimPeer peer : peers) {
+            if (peer.channel.isConnected()) {
+                connected++;
+            }
+        }
+        System.out.printf("[%4.0f s] peers %d | req/s %.0f, replies/s %.0f, done/s %.0f, unavailable %d, stalled %d, skipped %d | churned %d, list changes %d | %.1f KB/s in, %.1f KB/s out%n",
+                elapsed, connected, requestsSent / seconds, repliesReceived / seconds, completed / seconds, unavailable, stalled, skipped,
+                churned, listChanges, bytesIn / seconds / 1024, bytesOut / seconds / 1024);
+        System.out.printf("         reply p50 %s p99 %s p99.9 %s max %s | dispatch p99 %s | done p50 %s p99 %s%n",
+                millis(replyLatency.getQuantileNanos(0.5)), millis(replyLatency.getQuantileNanos(0.99)),
+                millis(replyLatency.getQuantileNanos(0.999)), millis(replyLatency.getMaxNanos()),
+                millis(dispatchLatency.getQuantileNanos(0.99)),
+                millis(completionLatency.getQuantileNanos(0.5)), millis(completionLatency.getQuantileNanos(0.99)));
+
+        HashMap<String, Double> trackerMetrics = scrapeTracker();
+        if (!trackerMetrics.isEmpty()) {
+            double cpu = trackerMetrics.getOrDefault("process_cpu_seconds_total", 0.0);
+            System.out.printf("         tracker: cpu %.0f%%, rss %.0f MB, heap %.0f MB, threads %.0f, sessions %.0f, files %.0f, lock wait p99 %s%n",
+                    (cpu - lastTrackerCpu) / seconds * 100, trackerMetrics.getOrDefault("process_resident_memory_bytes", 0.0) / (1 << 20),
+                    trackerMetrics.getOrDefault("jvm_heap_used_bytes", 0.0) / (1 << 20),
+                    trackerMetrics.getOrDefault("jvm_threads", 0.0), trackerMetrics.getOrDefault("tracker_connected_peers", 0.0),
+                    trackerMetrics.getOrDefault("tracker_indexed_files", 0.0),
+                    millis((long) (trackerMetrics.getOrDefault("tracker_lock_wait_seconds{quantile=\"0.99\"}", 0.0) * 1e9)));
+            lastTrackerCpu = cpu;
+        }
+
+        replyLatency = new LatencyHistogram();
+        dispatchLatency = new LatencyHistogram();
+        completionLatency = new LatencyHistogram();
+        totalStalled += stalled;
+        requestsSent = repliesReceived = unavailable = completed = stalled = skipped = churned = listChanges = bytesIn = bytesOut = 0;
+    }
+
+    //Reads the tracker's metrics endpoint; empty if it is not reachable
+    private HashMap<String, Double> scrapeTracker() {
+        HashMap<String, Double> values = new HashMap<>();
+        if (metricsPort <= 0) {
+            return values;
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http", tracker.getHostString(), metricsPort, "/metrics").openConnection();
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout(2000);
+            try (InputStream in = connection.getInputStream(); Scanner lines = new Scanner(in, "UTF-8")) {
+                while (lines.hasNextLine()) {
+                    String line = lines.nextLine();
+                    int space = line.lastIndexOf(' ');
+                    if (space > 0) {
+                        values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            values.clear();
+        }
+        return values;
+    }
+
+    private static String fileName(int n) {
+        return "file-" + n + ".dat";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    //Decodes a writeUTF string; null if it has not fully arrived
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort(buffer.position()) & 0xFFFF;
+        if (buffer.remaining() < 2 + length) {
+            return null;
+        }
+        byte encoded[] = new byte[2 + length];
+        buffer.get(encoded);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+}
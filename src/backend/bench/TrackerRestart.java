@@ -0,0 +1,74 @@
+package backend.bench;
+
+import backend.tracker.SharedData;
+import backend.tracker.TrackerStore;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Measures how long a tracker takes to get its file index back after a
+ * restart, once by replaying the change log alone and once from a compact
+ * snapshot. For example java -Xmx4g backend.bench.TrackerRestart 2000000 3
+ *
+ * @author hexbioc
+ */
+public class TrackerRestart {
+
+    public static void main(String args[]) throws IOException {
+
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int ownersPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int peerCount = 1000;
+        File directory = Files.createTempDirectory("tracker-restart").toFile();
+
+        SharedData sharedData = new SharedData();
+        TrackerStore store = new TrackerStore(directory);
+        store.restore(sharedData);
+        sharedData.setStore(store);
+        store.start(sharedData);
+
+        long started = System.nanoTime();
+        for (int f = 0; f < fileCount; f++) {
+            String fileName = "build/output/module-" + (f % 500) + "/file-" + f + ".class";
+            for (int o = 0; o < ownersPerFile; o++) {
+                sharedData.addFileInfo("10.0." + ((f + o * 31) % peerCount / 250) + "." + ((f + o * 31) % 250), fileName, f);
+            }
+        }
+        for (int p = 0; p < peerCount; p++) {
+            sharedData.finishFileList("10.0." + (p / 250) + "." + (p % 250), 42, 1);
+        }
+        store.close();
+        System.out.printf("Indexed and logged %,d entries in %,d ms%n", (long) fileCount * ownersPerFile, millisSince(started));
+
+        started = System.nanoTime();
+        SharedData replayed = new SharedData();
+        store = new TrackerStore(directory);
+        store.restore(replayed);
+        System.out.printf("Restart from change log only: %,d files in %,d ms%n", replayed.getFileCount(), millisSince(started));
+        store.start(replayed);
+        replayed.setStore(store);
+
+        started = System.nanoTime();
+        store.snapshot(replayed);
+        store.close();
+        System.out.printf("Snapshot written in %,d ms%n", millisSince(started));
+        replayed = null;
+
+        started = System.nanoTime();
+        SharedData restored = new SharedData();
+        store = new TrackerStore(directory);
+        store.restore(restored);
+        System.out.printf("Restart from snapshot: %,d files in %,d ms%n", restored.getFileCount(), millisSince(started));
+
+        for (File file : directory.listFiles()) {
+            System.out.printf("  %-16s %,d bytes%n", file.getName(), file.length());
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static long millisSince(long started) {
+        return (System.nanoTime() - started) / 1000000;
+    }
+}
@@ -0,0 +1,101 @@
+package backend.bench;
+
+import backend.peer.RangeUploader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compares ways of uploading a file range over a loopback connection: the
+ * old 512 byte heap copy loop, the direct buffer copy and zero-copy
+ * transferTo. Each is run a few times and the best throughput is
+ * reported. For example java backend.bench.UploadThroughput 1024 (MB)
+ *
+ * @author hexbioc
+ */
+public class UploadThroughput {
+
+    private static final int ROUNDS = 3;
+
+    private interface Uploader {
+
+        void upload(File file, long length, SocketChannel channel) throws IOException;
+    }
+
+    public static void main(String args[]) throws Exception {
+
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        long length = megabytes << 20;
+        File file = File.createTempFile("upload-throughput", ".dat");
+        file.deleteOnExit();
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            byte block[] = new byte[1 << 20];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < length; written += block.length) {
+                data.write(block);
+            }
+        }
+
+        measure("512 byte heap copy (old)", file, length, (f, n, channel) -> {
+            DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+            try (RandomAccessFile randomFile = new RandomAccessFile(f, "r")) {
+                byte buffer[] = new byte[512];
+                for (long sent = 0; sent < n; sent += buffer.length) {
+                    randomFile.readFully(buffer);
+                    out.write(buffer);
+                }
+            }
+        });
+        measure("direct buffer copy", file, length, (f, n, channel) -> {
+            try (FileChannel source = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                RangeUploader.copy(source, 0, n, channel);
+            }
+        });
+        measure("zero-copy transferTo", file, length, (f, n, channel) -> {
+            try (FileChannel source = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                RangeUploader.send(source, 0, n, channel);
+            }
+        });
+        file.delete();
+    }
+
+    private static void measure(String name, File file, long length, Uploader uploader) throws Exception {
+
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                //The receiver only drains the socket, so the sender is what is measured
+                Thread receiver = new Thread(() -> {
+                    try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                        byte buffer[] = new byte[1 << 20];
+                        while (in.read(buffer) >= 0) {
+                            //Discard
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+                receiver.start();
+                long started;
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()))) {
+                    started = System.nanoTime();
+                    uploader.upload(file, length, channel);
+                }
+                receiver.join();
+                best = Math.max(best, length / ((System.nanoTime() - started) / 1e9) / (1 << 20));
+            }
+        }
+        System.out.printf("%-26s %,8.0f MB/s%n", name, best);
+    }
+}
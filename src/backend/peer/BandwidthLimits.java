@@ -0,0 +1,62 @@
+package backend.peer;
+
+/**
+ * The bandwidth a peer may use: a cap on all its uploads together, one on
+ * all its downloads together and one on every single connection, in
+ * either direction. Each is in kilobytes per second, 0 for none, and takes
+ * effect at once, also for transfers already running. The initial caps are
+ * taken from -Dpeer.upload.limit, -Dpeer.download.limit and
+ * -Dpeer.connection.limit.
+ *
+ * @author hexbioc
+ */
+final class BandwidthLimits {
+
+    private volatile long uploadKilobytes;
+    private volatile long downloadKilobytes;
+    private volatile long connectionKilobytes;
+    private final RateLimiter upload;
+    private final RateLimiter download;
+
+    BandwidthLimits() {
+        uploadKilobytes = Long.getLong("peer.upload.limit", 0);
+        downloadKilobytes = Long.getLong("peer.download.limit", 0);
+        connectionKilobytes = Long.getLong("peer.connection.limit", 0);
+        upload = new RateLimiter(() -> uploadKilobytes * 1024, null);
+        download = new RateLimiter(() -> downloadKilobytes * 1024, null);
+    }
+
+    //A limiter for one connection uploading, charging the upload cap as well
+    RateLimiter forUpload() {
+        return new RateLimiter(() -> connectionKilobytes * 1024, upload);
+    }
+
+    //A limiter for one connection downloading, charging the download cap as well
+    RateLimiter forDownload() {
+        return new RateLimiter(() -> connectionKilobytes * 1024, download);
+    }
+
+    long getUploadLimit() {
+        return uploadKilobytes;
+    }
+
+    void setUploadLimit(long kilobytesPerSecond) {
+        uploadKilobytes = kilobytesPerSecond;
+    }
+
+    long getDownloadLimit() {
+        return downloadKilobytes;
+    }
+
+    void setDownloadLimit(long kilobytesPerSecond) {
+        downloadKilobytes = kilobytesPerSecond;
+    }
+
+    long getConnectionLimit() {
+        return connectionKilobytes;
+    }
+
+    void setConnectionLimit(long kilobytesPerSecond) {
+        connectionKilobytes = kilobytesPerSecond;
+    }
+}
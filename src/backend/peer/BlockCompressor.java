@@ -0,0 +1,140 @@
+package backend.peer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Sends ranges of a file as blocks of up to {@link #BLOCK_SIZE} bytes, each
+ * deflated at the fastest level when that makes it noticeably smaller and
+ * stored as it is otherwise. Every block is a codec byte, the length of
+ * what follows and the data; each deflated block stands on its own.
+ *
+ * Trying to deflate data that does not shrink only costs time, so after a
+ * block that did not shrink the next one is sent stored without trying,
+ * then the next two, four and so on up to {@link #MAX_BACKOFF_BLOCKS}; a
+ * block that shrinks again ends the back off. Files that are compressed
+ * already, judged by their extension, are not sent in blocks at all.
+ *
+ * Used on a connection when both peers run with -Dpeer.compression=true.
+ *
+ * @author hexbioc
+ */
+final class BlockCompressor {
+
+    static final boolean ENABLED = Boolean.getBoolean("peer.compression");
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /*BLOCK CODECS*/
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+    //Codec byte and length
+    static final int BLOCK_HEADER_LENGTH = 5;
+
+    //A block is only sent deflated if that saves at least an eighth of it
+    private static final int MIN_SAVING_SHIFT = 3;
+    private static final int MAX_BACKOFF_BLOCKS = 64;
+    //Formats that are compressed already; deflating them gains nothing
+    private static final String COMPRESSED_EXTENSIONS[] = {
+        "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+        "docx", "xlsx", "pptx", "odt", "ods",
+        "jpg", "jpeg", "png", "gif", "webp", "heic",
+        "mp3", "aac", "ogg", "flac", "m4a",
+        "mp4", "m4v", "mkv", "avi", "mov", "webm"
+    };
+
+    private final Deflater deflater;
+    private final byte raw[];
+    private final byte deflated[];
+    //Blocks still to be sent stored without trying, and how many were skipped last time
+    private int skip;
+    private int backoff;
+    private long rawBytes;
+    private long sentBytes;
+
+    BlockCompressor() {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        raw = new byte[BLOCK_SIZE];
+        deflated = new byte[BLOCK_SIZE];
+    }
+
+    static boolean isCompressedMedia(String path) {
+        String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        for (String compressed : COMPRESSED_EXTENSIONS) {
+            if (compressed.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Writes length bytes of the file starting at offset to the output, in blocks; the output is not flushed
+    void send(PieceChannel file, long offset, long length, DataOutputStream out) throws IOException {
+
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            int blockLength = (int) Math.min(BLOCK_SIZE, end - position);
+            ByteBuffer buffer = ByteBuffer.wrap(raw, 0, blockLength);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File ended " + (end - position - buffer.position()) + " bytes before the requested range");
+                }
+            }
+            int deflatedLength = deflate(blockLength);
+            if (deflatedLength < 0) {
+                out.write(STORED);
+                out.writeInt(blockLength);
+                out.write(raw, 0, blockLength);
+                sentBytes += BLOCK_HEADER_LENGTH + blockLength;
+            } else {
+                out.write(DEFLATED);
+                out.writeInt(deflatedLength);
+                out.write(deflated, 0, deflatedLength);
+                sentBytes += BLOCK_HEADER_LENGTH + deflatedLength;
+            }
+            rawBytes += blockLength;
+            position += blockLength;
+        }
+    }
+
+    //Returns the length of the block deflated, or -1 if it is to be sent stored
+    private int deflate(int length) {
+
+        if (skip > 0) {
+            skip--;
+            return -1;
+        }
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        //Stop as soon as the output grows past the point where deflating pays
+        int limit = length - (length >> MIN_SAVING_SHIFT);
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < limit) {
+            deflatedLength += deflater.deflate(deflated, deflatedLength, limit - deflatedLength);
+        }
+        if (!deflater.finished()) {
+            backoff = Math.min(Math.max(1, backoff * 2), MAX_BACKOFF_BLOCKS);
+            skip = backoff;
+            return -1;
+        }
+        backoff = 0;
+        return deflatedLength;
+    }
+
+    long getRawBytes() {
+        return rawBytes;
+    }
+
+    //Including the block headers
+    long getSentBytes() {
+        return sentBytes;
+    }
+
+    void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,91 @@
+package backend.peer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives ranges of a file sent in blocks by a {@link BlockCompressor},
+ * one block at a time, to be written in place into the target file.
+ *
+ * @author hexbioc
+ */
+final class BlockDecompressor {
+
+    private final Inflater inflater;
+    private final byte raw[];
+    private final byte deflated[];
+    //Length of the block read last
+    private int blockLength;
+    //Including the block headers
+    private long receivedBytes;
+
+    BlockDecompressor() {
+        inflater = new Inflater();
+        //One byte more than a block, so that the end of the deflated data is always reached
+        raw = new byte[BlockCompressor.BLOCK_SIZE + 1];
+        deflated = new byte[BlockCompressor.BLOCK_SIZE];
+    }
+
+    //Reads the next block from the input, which is blockLength bytes once inflated
+    void read(DataInputStream in, int blockLength) throws IOException {
+
+        byte codec = in.readByte();
+        int sentLength = in.readInt();
+        if (codec == BlockCompressor.STORED && sentLength == blockLength) {
+            in.readFully(raw, 0, blockLength);
+        } else if (codec == BlockCompressor.DEFLATED && sentLength > 0 && sentLength <= blockLength) {
+            in.readFully(deflated, 0, sentLength);
+            inflate(sentLength, blockLength);
+        } else {
+            throw new IOException("Unexpected block: codec " + codec + ", " + sentLength + " bytes");
+        }
+        this.blockLength = blockLength;
+        receivedBytes += BlockCompressor.BLOCK_HEADER_LENGTH + sentLength;
+    }
+
+    //Writes the block read last into the target at position
+    void write(PieceChannel target, long position) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, blockLength);
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+    }
+
+    //Copies the block read last into the buffer
+    void copyTo(ByteBuffer buffer) {
+        buffer.put(raw, 0, blockLength);
+    }
+
+    private void inflate(int deflatedLength, int blockLength) throws IOException {
+
+        inflater.reset();
+        inflater.setInput(deflated, 0, deflatedLength);
+        int inflated = 0;
+        try {
+            while (!inflater.finished() && inflated <= blockLength) {
+                int count = inflater.inflate(raw, inflated, blockLength + 1 - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt block", ex);
+        }
+        if (inflated != blockLength || !inflater.finished()) {
+            throw new IOException("Block inflated to " + inflated + " bytes instead of " + blockLength);
+        }
+    }
+
+    long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    void end() {
+        inflater.end();
+    }
+}
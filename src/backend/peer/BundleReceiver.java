@@ -0,0 +1,157 @@
+package backend.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Receives a bundle of small files a source offered over its connection:
+ * the files this peer asked for in a batch that the tracker had the source
+ * send together. Each file is a size, the encoding of its data, the hash of
+ * its content and the content, raw or in blocks, and is written whole to
+ * its place and checked against the hash. All of it goes through the
+ * streams, since the files are too small for the raw channel to pay. A
+ * file that the source could not send or that arrived corrupt is asked for
+ * again on its own. Runs on the thread of the connection, which is kept for
+ * the next download if the bundle ends cleanly.
+ *
+ * @author hexbioc
+ */
+class BundleReceiver {
+
+    private final PeerConnection connection;
+    private final DownloadManager downloads;
+
+    BundleReceiver(PeerConnection connection, DownloadManager downloads) {
+        this.connection = connection;
+        this.downloads = downloads;
+    }
+
+    //Returns whether the connection is in a state to serve another download
+    boolean receive() throws IOException, InterruptedException {
+
+        DataInputStream disPeer = connection.getInput();
+        DataOutputStream dosPeer = connection.getOutput();
+        int fileCount = disPeer.readInt();
+        List<String> fileNames = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            fileNames.add(disPeer.readUTF());
+        }
+        //The sizes the tracker reported for the files wanted; -1 for the others
+        long sizes[] = new long[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            sizes[i] = downloads.claimBundled(fileNames.get(i));
+        }
+        dosPeer.writeByte(BlockCompressor.ENABLED ? PeerConnection.ENCODING_BLOCKS : PeerConnection.ENCODING_RAW);
+        for (long size : sizes) {
+            dosPeer.writeBoolean(size >= 0);
+        }
+        dosPeer.flush();
+
+        RateLimiter limiter = downloads.bandwidth.forDownload();
+        BlockDecompressor decompressor = new BlockDecompressor();
+        byte buffer[] = new byte[BlockCompressor.BLOCK_SIZE];
+        int received = 0;
+        int next = 0;
+        try {
+            for (; next < fileCount; next++) {
+                if (sizes[next] < 0) {
+                    continue;
+                }
+                if (receiveFile(fileNames.get(next), sizes[next], decompressor, buffer, limiter)) {
+                    received++;
+                } else {
+                    downloads.bundleFailed(fileNames.get(next));
+                }
+            }
+            System.out.println("Bundle from " + connection.getAddress() + ": " + received + " files received");
+            dosPeer.writeLong(PeerConnection.END_OF_REQUESTS);
+            dosPeer.flush();
+            return true;
+        } finally {
+            decompressor.end();
+            //Whatever the bundle did not get to
+            for (; next < fileCount; next++) {
+                if (sizes[next] >= 0) {
+                    downloads.bundleFailed(fileNames.get(next));
+                }
+            }
+        }
+    }
+
+    //Returns whether the file arrived intact; its data is read off the connection either way, so the next file can follow
+    private boolean receiveFile(String fileName, long expectedSize, BlockDecompressor decompressor, byte buffer[],
+            RateLimiter limiter) throws IOException, InterruptedException {
+
+        DataInputStream disPeer = connection.getInput();
+        long size = disPeer.readLong();
+        if (size < 0) {
+            System.out.println("Source could not send " + fileName + " in a bundle");
+            return false;
+        }
+        if (size > PieceScheduler.PIECE_SIZE) {
+            throw new IOException("Bundled file " + fileName + " is " + size + " bytes");
+        }
+        boolean blocks = disPeer.readByte() == PeerConnection.ENCODING_BLOCKS;
+        byte hash[] = new byte[PieceManifest.HASH_LENGTH];
+        disPeer.readFully(hash);
+        //A file that changed at the source since the tracker heard of it is read and dropped
+        if (size != expectedSize) {
+            skip(size, blocks, decompressor, buffer, limiter);
+            System.out.println("Bundled file " + fileName + " is " + size + " bytes instead of " + expectedSize);
+            return false;
+        }
+        try (RandomAccessFile receivedFile = new RandomAccessFile(fileName, "rw")) {
+            PieceChannel target = new FilePieceChannel(receivedFile.getChannel());
+            receivedFile.setLength(size);
+            for (long position = 0; position < size;) {
+                int length = (int) Math.min(BlockCompressor.BLOCK_SIZE, size - position);
+                if (blocks) {
+                    long receivedBefore = decompressor.getReceivedBytes();
+                    decompressor.read(disPeer, length);
+                    decompressor.write(target, position);
+                    limiter.acquire(decompressor.getReceivedBytes() - receivedBefore);
+                } else {
+                    disPeer.readFully(buffer, 0, length);
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                    while (data.hasRemaining()) {
+                        target.write(data, position + data.position());
+                    }
+                    limiter.acquire(length);
+                }
+                position += length;
+            }
+            if (Arrays.equals(hash, PieceManifest.hashPiece(target, 0, (int) size))) {
+                return true;
+            }
+        }
+        System.out.println("Bundled file " + fileName + " did not arrive intact");
+        new File(fileName).delete();
+        return false;
+    }
+
+    //Reads a file the receiver has no use for off the connection
+    private void skip(long size, boolean blocks, BlockDecompressor decompressor, byte buffer[], RateLimiter limiter)
+            throws IOException, InterruptedException {
+
+        DataInputStream disPeer = connection.getInput();
+        for (long position = 0; position < size;) {
+            int length = (int) Math.min(BlockCompressor.BLOCK_SIZE, size - position);
+            if (blocks) {
+                long receivedBefore = decompressor.getReceivedBytes();
+                decompressor.read(disPeer, length);
+                limiter.acquire(decompressor.getReceivedBytes() - receivedBefore);
+            } else {
+                disPeer.readFully(buffer, 0, length);
+                limiter.acquire(length);
+            }
+            position += length;
+        }
+    }
+}
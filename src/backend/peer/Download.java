@@ -0,0 +1,137 @@
+package backend.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The file a peer is receiving and the sources working on it. Connections
+ * offered by sources are taken on until as many sources as the tracker
+ * planned have joined; the download is over as soon as every piece has
+ * been verified, or else once none of them is still working and either all
+ * have joined or no new one has turned up for a while. Sources still busy
+ * with copies the endgame called off are not waited for.
+ *
+ * @author hexbioc
+ */
+class Download {
+
+    final String fileName;
+    final PieceChannel target;
+    final PieceScheduler scheduler;
+    final PieceVerifier verifier;
+    final BandwidthLimits bandwidth;
+    private final int wantedSources;
+    private final ArrayList<PeerThread> receivers;
+    private int active;
+    private long lastArrival;
+    private boolean closed;
+    //A lock rather than the monitor; the download waits on it and may run on a virtual thread
+    private final ReentrantLock lock;
+    //Signalled when a source finishes or the last piece is verified
+    private final Condition sourceFinished;
+
+    Download(String fileName, PieceChannel target, PieceScheduler scheduler, PieceVerifier verifier, BandwidthLimits bandwidth, int wantedSources) {
+        this.fileName = fileName;
+        this.target = target;
+        this.scheduler = scheduler;
+        this.verifier = verifier;
+        this.bandwidth = bandwidth;
+        this.wantedSources = wantedSources;
+        receivers = new ArrayList<>();
+        lastArrival = System.currentTimeMillis();
+        lock = new ReentrantLock();
+        sourceFinished = lock.newCondition();
+        scheduler.setCompletionListener(this::completed);
+    }
+
+    /**
+     * Takes on a source offering the connection, or returns null if the
+     * download has all the sources it wants or is over.
+     */
+    PeerThread join(PeerConnection connection) {
+        lock.lock();
+        try {
+            if (closed || receivers.size() >= wantedSources) {
+                return null;
+            }
+            //Every source the tracker hands out holds the whole file
+            PeerThread receiver = new PeerThread(connection, this, scheduler.allPieces());
+            receivers.add(receiver);
+            active++;
+            lastArrival = System.currentTimeMillis();
+            return receiver;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completed() {
+        lock.lock();
+        try {
+            sourceFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finished(PeerThread receiver) {
+        lock.lock();
+        try {
+            active--;
+            sourceFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the download is over and closes it to late sources.
+     * Sources that have not joined within the timeout of the previous one
+     * are not waited for.
+     */
+    void awaitEnd(long joinTimeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long waited = System.currentTimeMillis() - lastArrival;
+                if (scheduler.isComplete() || (active == 0 && receivers.size() >= wantedSources)) {
+                    return;
+                }
+                if (active == 0 && waited >= joinTimeoutMillis) {
+                    System.out.println("Only " + receivers.size() + " of " + wantedSources + " sources connected in time");
+                    return;
+                }
+                //Sources working on the download wake this up when they finish
+                if (active > 0) {
+                    sourceFinished.await();
+                } else {
+                    sourceFinished.await(joinTimeoutMillis - waited, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            closed = true;
+            lock.unlock();
+        }
+    }
+
+    List<PeerThread> getReceivers() {
+        lock.lock();
+        try {
+            return new ArrayList<>(receivers);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package backend.peer;
+
+import backend.tracker.WorkerThreads;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the downloads of a peer, any number at a time, each on its own
+ * thread and with its own state. Files are requested from the tracker
+ * first and started when the tracker answers with the sources; from then
+ * on the single {@link PeerListener} hands every offered source connection
+ * to the download of the file it is offered for. The hashing threads that
+ * verify pieces are shared by all downloads. Small files asked for in a
+ * batch come in bundles instead, see {@link BundleReceiver}; a bundled
+ * file that does not arrive intact is asked for again on its own. A file
+ * can be read while it downloads, see {@link PieceStream}; it is always
+ * downloaded on its own then.
+ *
+ * @author hexbioc
+ */
+class DownloadManager {
+
+    //The tracker tells the sources and the receiver about a transfer at the same time, so an offer may come just before the download is set up
+    private static final long OFFER_WAIT_MILLIS = 5000;
+
+    private final int listenPort;
+    private final long sourceJoinTimeoutMillis;
+    final BandwidthLimits bandwidth;
+    //Asks the tracker for the sources of a single file
+    private final Consumer<String> trackerRequest;
+    private final ExecutorService hashingPool;
+    //Files asked for whose sources the tracker has not named yet
+    private final HashSet<String> requested;
+    //Downloads in progress, by file name
+    private final HashMap<String, Download> running;
+    //Sizes of the files the tracker will have sent in bundles, until their source offers them
+    private final HashMap<String, Long> bundled;
+    //Streams waiting for the download of the file they read to start
+    private final HashMap<String, List<PieceStream>> streams;
+    private PeerListener listener;
+    //Guards the above; connection threads wait on it, and they may be virtual threads
+    private final ReentrantLock lock;
+    //Signalled when a download starts
+    private final Condition downloadStarted;
+
+    DownloadManager(int listenPort, long sourceJoinTimeoutMillis, BandwidthLimits bandwidth, Consumer<String> trackerRequest) {
+        this.listenPort = listenPort;
+        this.sourceJoinTimeoutMillis = sourceJoinTimeoutMillis;
+        this.bandwidth = bandwidth;
+        this.trackerRequest = trackerRequest;
+        hashingPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "piece-verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        requested = new HashSet<>();
+        running = new HashMap<>();
+        bundled = new HashMap<>();
+        streams = new HashMap<>();
+        lock = new ReentrantLock();
+        downloadStarted = lock.newCondition();
+    }
+
+    //Returns false if the file is already asked for or being downloaded
+    boolean request(String fileName) {
+        lock.lock();
+        try {
+            if (running.containsKey(fileName)) {
+                return false;
+            }
+            //A bundle that never came does not stand in the way
+            bundled.remove(fileName);
+            return requested.add(fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The files still waiting for an answer from the tracker
+    List<String> getRequested() {
+        lock.lock();
+        try {
+            return new ArrayList<>(requested);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unavailable(String fileName) {
+        List<PieceStream> waiting;
+        lock.lock();
+        try {
+            requested.remove(fileName);
+            waiting = streams.remove(fileName);
+        } finally {
+            lock.unlock();
+        }
+        failStreams(waiting, fileName + " is not available");
+    }
+
+    //A stream reading the file as it downloads; it starts with the download, right away if that is running
+    PieceStream stream(String fileName) {
+        PieceStream stream = new PieceStream(fileName);
+        Download download;
+        lock.lock();
+        try {
+            download = running.get(fileName);
+            if (download == null) {
+                streams.computeIfAbsent(fileName, name -> new ArrayList<>()).add(stream);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (download != null) {
+            stream.attach(download.scheduler);
+        }
+        return stream;
+    }
+
+    private static void failStreams(List<PieceStream> waiting, String reason) {
+        if (waiting != null) {
+            for (PieceStream stream : waiting) {
+                stream.fail(reason);
+            }
+        }
+    }
+
+    //The tracker will have the requested file sent in a bundle
+    void expectBundled(String fileName, long fileSize) {
+        try {
+            //The source connects to the listener like for any download
+            startListener();
+        } catch (IOException ex) {
+            Logger.getLogger(DownloadManager.class.getName()).log(Level.SEVERE, null, ex);
+            unavailable(fileName);
+            return;
+        }
+        boolean alone = false;
+        lock.lock();
+        try {
+            if (streams.containsKey(fileName)) {
+                //A bundle is only of use once whole; a file being streamed is asked for again on its own
+                alone = requested.contains(fileName);
+            } else if (requested.remove(fileName)) {
+                bundled.put(fileName, fileSize);
+                downloadStarted.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (alone) {
+            trackerRequest.accept(fileName);
+        }
+    }
+
+    /**
+     * Takes on a file offered in a bundle, waiting a little for the answer
+     * of the tracker to be in. Returns the size the tracker reported for it,
+     * or -1 if it is not wanted.
+     */
+    long claimBundled(String fileName) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + OFFER_WAIT_MILLIS;
+        lock.lock();
+        try {
+            while (true) {
+                Long fileSize = bundled.remove(fileName);
+                if (fileSize != null) {
+                    return fileSize;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (!requested.contains(fileName) || streams.containsKey(fileName) || remaining <= 0) {
+                    return -1;
+                }
+                downloadStarted.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //A bundled file did not arrive intact; ask for it on its own
+    void bundleFailed(String fileName) {
+        if (request(fileName)) {
+            trackerRequest.accept(fileName);
+        }
+    }
+
+    //The tracker has named the sources of a requested file; download it in the background
+    void start(String fileName, int peerCount, long fileSize) {
+        lock.lock();
+        try {
+            if (!requested.remove(fileName)) {
+                System.out.println("Ignoring sources for " + fileName + ", which was not asked for");
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        WorkerThreads.newThread("download-" + fileName, () -> receive(fileName, peerCount, fileSize), Peer.VIRTUAL_THREADS, false).start();
+    }
+
+    /**
+     * Downloads the file from the sources the tracker has told to offer
+     * their connections, returning when it is complete or no source is
+     * left to get the rest from.
+     */
+    void receive(String fileName, int peerCount, long fileSize) {
+
+        System.out.printf("Waiting for peers to connect for %s; total: %d%nFilesize: %d%n", fileName, peerCount, fileSize);
+        PieceScheduler scheduler = new PieceScheduler(fileSize);
+        //Whatever an earlier, interrupted attempt left on disk
+        PieceBitfield bitfield = PieceBitfield.open(new File(fileName), fileSize, scheduler.getPieceCount());
+        //No point in more sources than pieces
+        int sources = Math.max(1, Math.min(peerCount, scheduler.getPieceCount()));
+        try (PieceChannel target = openTarget(fileName, fileSize)) {
+            startListener();
+
+            PieceVerifier verifier = new PieceVerifier(target, scheduler, bitfield, hashingPool);
+
+            //Sources start taking pieces as soon as they offer their connections
+            Download download = new Download(fileName, target, scheduler, verifier, bandwidth, sources);
+            List<PieceStream> waiting;
+            lock.lock();
+            try {
+                running.put(fileName, download);
+                waiting = streams.remove(fileName);
+                downloadStarted.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (waiting != null) {
+                //The file is there at its full size by now
+                for (PieceStream stream : waiting) {
+                    stream.attach(scheduler);
+                }
+            }
+            try {
+                //Do not wait forever for sources that never connect
+                download.awaitEnd(sourceJoinTimeoutMillis);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(DownloadManager.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                //Streams waiting for pieces that did not come are let go
+                scheduler.end();
+                lock.lock();
+                try {
+                    running.remove(fileName);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            for (PeerThread receiver : download.getReceivers()) {
+                System.out.println("Pieces of " + fileName + " from " + receiver.getSourceAddress() + ": " + receiver.getPiecesReceived());
+            }
+
+            if (scheduler.isComplete()) {
+                bitfield.delete();
+                System.out.println("File successfully received: " + fileName);
+            } else {
+                //Asking for the file again carries on from here
+                bitfield.save(target);
+                System.out.println("File transfer incomplete: " + fileName);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(DownloadManager.class.getName()).log(Level.SEVERE, null, ex);
+            //Those still waiting if the download could not start at all
+            List<PieceStream> waiting;
+            lock.lock();
+            try {
+                waiting = streams.remove(fileName);
+            } finally {
+                lock.unlock();
+            }
+            failStreams(waiting, "Cannot download " + fileName);
+        }
+    }
+
+    //A directory is rebuilt under its name once the first source has sent the files in it
+    private static PieceChannel openTarget(String fileName, long fileSize) throws IOException {
+        if (FileTree.isTree(fileName)) {
+            return new TreeChannel(new File(fileName));
+        }
+        RandomAccessFile receivedFile = new RandomAccessFile(fileName, "rw");
+        try {
+            //Size the file up front; every piece is written straight into its place
+            receivedFile.setLength(fileSize);
+        } catch (IOException ex) {
+            receivedFile.close();
+            throw ex;
+        }
+        return new FilePieceChannel(receivedFile.getChannel());
+    }
+
+    //The connections sources open stay up between downloads, so the listener is started once
+    private void startListener() throws IOException {
+        lock.lock();
+        try {
+            if (listener == null) {
+                listener = new PeerListener(listenPort, this);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Joins a connection offered for the file to its download, waiting a
+     * little for the download to start. Returns null if there is no such
+     * download or it already has all the sources it wants.
+     */
+    PeerThread join(String fileName, PeerConnection connection) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + OFFER_WAIT_MILLIS;
+        lock.lock();
+        try {
+            while (true) {
+                Download download = running.get(fileName);
+                if (download != null) {
+                    PeerThread receiver = download.join(connection);
+                    if (receiver != null || !download.isClosed()) {
+                        //Either taken on, or the download already has all the sources it wants
+                        return receiver;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                downloadStarted.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package backend.peer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Versioned record of the changes made to a peer's shared file list, so that
+ * the tracker can be sent only what changed since the version it last saw.
+ * Every change bumps the version by one. Only the most recent changes are
+ * kept; a tracker that is further behind gets the full list instead.
+ *
+ * @author hexbioc
+ */
+class FileListJournal {
+
+    /*FILE LIST CHANGES*/
+    //A file was added; followed by its size
+    static final byte CHANGE_ADD = 0;
+    //A file was removed
+    static final byte CHANGE_REMOVE = 1;
+    //The size of a file changed; followed by the new size
+    static final byte CHANGE_SIZE = 2;
+
+    private static final int MAX_CHANGES = 4096;
+
+    static final class Change {
+
+        final long version;
+        final byte change;
+        final String fileName;
+        final long fileSize;
+
+        Change(long version, byte change, String fileName, long fileSize) {
+            this.version = version;
+            this.change = change;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+    }
+
+    //Identifies this run of the peer; versions are only comparable within one epoch
+    private final long epoch;
+    private long version;
+    private final ArrayDeque<Change> changes;
+
+    FileListJournal() {
+        long random;
+        do {
+            random = new Random().nextLong();
+        } while (random == 0);
+        epoch = random;
+        version = 0;
+        changes = new ArrayDeque<>();
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void record(byte change, String fileName, long fileSize) {
+        changes.add(new Change(++version, change, fileName, fileSize));
+        if (changes.size() > MAX_CHANGES) {
+            changes.poll();
+        }
+    }
+
+    //Whether every change after the given version is still in the journal
+    boolean covers(long epoch, long fromVersion) {
+        if (epoch != this.epoch || fromVersion > version) {
+            return false;
+        }
+        long oldest = changes.isEmpty() ? version + 1 : changes.peek().version;
+        return fromVersion >= oldest - 1;
+    }
+
+    List<Change> since(long fromVersion) {
+        ArrayList<Change> delta = new ArrayList<>();
+        for (Change c : changes) {
+            if (c.version > fromVersion) {
+                delta.add(c);
+            }
+        }
+        return delta;
+    }
+}
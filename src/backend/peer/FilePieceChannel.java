@@ -0,0 +1,51 @@
+package backend.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A single file shared or being received, handed straight to its
+ * FileChannel. Closing it closes the FileChannel.
+ *
+ * @author hexbioc
+ */
+final class FilePieceChannel implements PieceChannel {
+
+    private final FileChannel file;
+
+    FilePieceChannel(FileChannel file) {
+        this.file = file;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return file.size();
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return file.read(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return file.write(src, position);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return file.transferTo(position, count, target);
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        file.force(metaData);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
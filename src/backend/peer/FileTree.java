@@ -0,0 +1,200 @@
+package backend.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The files under a shared directory: their paths relative to it, with
+ * '/' between names, and their sizes, in the order of their paths. The
+ * files are laid end to end in that order, so that the directory is
+ * shared, scheduled and hashed as one contiguous space and pieces run
+ * across file boundaries; see {@link TreeChannel}. Only regular files are
+ * shared; links and empty directories are left out.
+ *
+ * A directory is shared under its name followed by '/', which tells the
+ * receiver to rebuild the tree rather than write a single file.
+ *
+ * @author hexbioc
+ */
+final class FileTree {
+
+    static final char SEPARATOR = '/';
+    //More files than this in a tree sent by a source is taken for garbage
+    private static final int MAX_FILES = 1 << 22;
+
+    private final String paths[];
+    private final long sizes[];
+    //Where each file starts in the contiguous space; one more entry for the end
+    private final long offsets[];
+    //Of the file changed last
+    private final long lastModified;
+
+    private FileTree(String paths[], long sizes[], long lastModified) throws IOException {
+        this.paths = paths;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+        offsets = new long[paths.length + 1];
+        for (int i = 0; i < paths.length; i++) {
+            if (sizes[i] < 0) {
+                throw new IOException("Negative size for " + paths[i]);
+            }
+            offsets[i + 1] = offsets[i] + sizes[i];
+        }
+    }
+
+    static boolean isTree(String shareName) {
+        return shareName.length() > 1 && shareName.charAt(shareName.length() - 1) == SEPARATOR;
+    }
+
+    //The name a file or directory is shared under
+    static String shareName(File file) {
+        return file.isDirectory() ? file.getName() + SEPARATOR : file.getName();
+    }
+
+    //Walks the directory, taking in every regular file below it
+    static FileTree scan(File root) throws IOException {
+
+        Path rootPath = root.toPath();
+        //Every peer must lay the files out in the same order
+        TreeMap<String, Long> found = new TreeMap<>();
+        long newest = root.lastModified();
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isRegularFile()) {
+                    found.put(relativePath(rootPath, file), attributes.size());
+                    newest = Math.max(newest, attributes.lastModifiedTime().toMillis());
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            //A directory that could not be listed
+            throw ex.getCause();
+        }
+        String paths[] = new String[found.size()];
+        long sizes[] = new long[found.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : found.entrySet()) {
+            paths[i] = entry.getKey();
+            sizes[i] = entry.getValue();
+            i++;
+        }
+        return new FileTree(paths, sizes, newest);
+    }
+
+    private static String relativePath(Path root, Path file) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : root.relativize(file)) {
+            if (path.length() > 0) {
+                path.append(SEPARATOR);
+            }
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+
+    int getFileCount() {
+        return paths.length;
+    }
+
+    String getPath(int file) {
+        return paths[file];
+    }
+
+    long getSize(int file) {
+        return sizes[file];
+    }
+
+    long getOffset(int file) {
+        return offsets[file];
+    }
+
+    long getTotalSize() {
+        return offsets[paths.length];
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    //The file holding the byte at position, which must be inside the tree; empty files hold none
+    int fileAt(long position) {
+        //The last file starting at or before position
+        int found = Arrays.binarySearch(offsets, 0, paths.length, position);
+        if (found < 0) {
+            return -found - 2;
+        }
+        //Skip the empty files starting at the same place
+        while (found + 1 < paths.length && offsets[found + 1] == position) {
+            found++;
+        }
+        return found;
+    }
+
+    //The place of the file under the root on this platform
+    File resolve(File root, int file) {
+        return new File(root, paths[file].replace(SEPARATOR, File.separatorChar));
+    }
+
+    //Whether the other tree has the same files at the same sizes
+    boolean sameLayout(FileTree other) {
+        return Arrays.equals(paths, other.paths) && Arrays.equals(sizes, other.sizes);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            out.writeUTF(paths[i]);
+            out.writeLong(sizes[i]);
+        }
+    }
+
+    /**
+     * Reads the files of a tree, the count of which has been read already.
+     * Paths that would lead out of the directory are refused, as are trees
+     * not in the order every peer lays them out in.
+     */
+    static FileTree read(DataInputStream in, int fileCount) throws IOException {
+
+        if (fileCount > MAX_FILES) {
+            throw new IOException("Tree of " + fileCount + " files");
+        }
+        String paths[] = new String[fileCount];
+        long sizes[] = new long[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            paths[i] = in.readUTF();
+            sizes[i] = in.readLong();
+            if (!isSafe(paths[i])) {
+                throw new IOException("Unusable path in tree: " + paths[i]);
+            }
+            if (i > 0 && paths[i - 1].compareTo(paths[i]) >= 0) {
+                throw new IOException("Tree out of order at " + paths[i]);
+            }
+        }
+        return new FileTree(paths, sizes, 0);
+    }
+
+    //Relative, made of plain names only
+    private static boolean isSafe(String path) {
+        if (path.isEmpty()) {
+            return false;
+        }
+        for (String name : path.split(String.valueOf(SEPARATOR), -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..")
+                    || name.indexOf('\\') >= 0 || name.indexOf(':') >= 0 || name.indexOf('\0') >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
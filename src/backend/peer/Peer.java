@@ -1,63 +1,130 @@
 package backend.peer;
 
+import backend.tracker.WorkerThreads;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Peer {
 
-    private static final int TRACKER_PORT = 8083;
     private static final int PEER_RECEIVER_PORT = 8081;
-    private static final int BUFFER_SIZE = 512;
-    //Setting the minimum file size to 1 MegaByte
-    private static final long MINIMUM_FILE_SIZE_BYTES = 1024 * 1024 * 1L;
+    //How often and how long to retry connecting to a receiver that is not listening yet
+    private static final int CONNECT_ATTEMPTS = 50;
+    private static final long CONNECT_RETRY_MILLIS = 100;
+    //Back off between these bounds while the tracker is unreachable
+    private static final long RECONNECT_MIN_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30000;
+    //How often an idle peer tells the tracker it is still alive
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 5000;
+    //Uploads served at once and uploads waiting for a slot; -Dpeer.upload.slots and -Dpeer.upload.queue
+    private static final int UPLOAD_SLOTS = Integer.getInteger("peer.upload.slots", 4);
+    private static final int UPLOAD_QUEUE = Integer.getInteger("peer.upload.queue", 64);
+    private static final long UPLOAD_THREAD_IDLE_SECONDS = 60;
+    //How long to wait for a source to connect before giving up on the download
+    private static final int SOURCE_ACCEPT_TIMEOUT_MILLIS = 60000;
+    //Whether the threads blocked on sockets are virtual threads; -Dpeer.threads=virtual, platform threads otherwise
+    static final boolean VIRTUAL_THREADS = "virtual".equals(System.getProperty("peer.threads", "platform"));
+
+    static {
+        if (VIRTUAL_THREADS && !WorkerThreads.isVirtualAvailable()) {
+            System.out.println("Virtual threads need Java 21 or later; using platform threads");
+        }
+    }
 
     /*TRACKER COMMANDS*/
     //Ask peer to send the list of files it has on its local storage
     private static final byte SEND_FILE_LIST = 1;
     //Get the status of the connected peer (IDLE/FILE_LIST_UPDATED/FILE_REQUIRED/TERMINATE)
     private static final byte SEND_PEER_STATUS = 2;
-    //Ask the peer to establish connection to the peer at the IP that is sent following the command
+    //Ask the peer to establish connection to the peer at the IP that is sent following the command, then the file name
     private static final byte COMMUNICATE_WITH_PEER = 3;
-    /*PEER REPLIES TO TRACKER*/
-    //Peer is idle
+    //Tracker's answer to a file request; followed by the file name and availability
+    private static final byte FILE_REQUEST_REPLY = 4;
+    //Tracker's answer to a batch of small files; followed by the number of files and for each the name,
+    //availability and size; those available come in bundles
+    private static final byte FILES_BUNDLED_REPLY = 5;
+    //Ask the peer to send a bundle of files to the peer at the IP that follows; then the request id and the file names
+    private static final byte COMMUNICATE_BUNDLE = 6;
+    /*PEER STATUS, PUSHED TO THE TRACKER AS IT CHANGES*/
+    //Peer is idle; also pushed every few seconds as a heartbeat
     private static final byte STATE_IDLE = 0;
-    //Peer's file list is updated
+    //Peer's file list is updated; followed by the full list or the changes since the tracker's version
     private static final byte STATE_FILE_LIST_UPDATED = 1;
     //Peer requires a file; reply will be followed by the file name
     private static final byte STATE_FILE_REQUIRED = 2;
     //Peer wishes to terminate connection; remove peers IP from the fileTable entries and close the socket
     private static final byte STATE_TERMINATE = 3;
+    //Peer has finished sending its share of a file to another peer; followed by the request id
+    private static final byte STATE_UPLOAD_COMPLETE = 4;
+    //Peer requires a batch of files; followed by the number of files and their names
+    private static final byte STATE_FILES_REQUIRED = 5;
     /*TRACKER REPLIES TO PEER*/
     private static final byte FILE_AVAILABLE = 1;
     //private static final byte FILE_NOT_AVAILABLE = 0;
+    /*FILE LIST TYPES*/
+    //Every shared file; replaces whatever the tracker knew about this peer
+    private static final byte LIST_FULL = 0;
+    //Only the changes made after the version the tracker already has
+    private static final byte LIST_DELTA = 1;
 
-    private String trackerInetAddress;
-    private Socket trackerSocket;
-    private DataOutputStream dosTracker;
-    private DataInputStream disTracker;
+    //The tracker shards, in the order the ring was built from; replaced as a whole when a shard is added
+    private volatile List<TrackerShard> shards;
+    //Decides which shard each file is registered with and requested from
+    private volatile ShardRing shardRing;
     private String fileListName;
     private File fileList;
-    private HashMap<String, String> pathMap;
-    private String requiredFileName;
-    private boolean fileListUpdatedFlag;
-    private boolean fileRequiredFlag;
+    //Path of each shared file; read without locks by the uploads
+    private final ConcurrentHashMap<String, String> pathMap;
+    //Last known size of each shared file, so files are not looked up on every list update
+    private final ConcurrentHashMap<String, Long> sizeMap;
+    //Orders changes to pathMap, sizeMap, the journals of the shards and the shard list; never held while on disk
+    private final ReentrantLock fileListLock;
+    //Piece hashes of the shared files that have been asked for, by path; guarded by itself
+    private final HashMap<String, PieceManifest> manifests;
+    //Idle connections to the peers this one has uploaded to
+    private final PeerConnectionPool uploadConnections;
+    //Runs uploads; bounded in both running and queued uploads
+    private final ThreadPoolExecutor uploads;
+    //Files asked for and being downloaded
+    private final DownloadManager downloads;
+    //Caps on the upload and download rates
+    private final BandwidthLimits bandwidth;
     private boolean terminateFlag;
+    private Thread heartbeat;
 
     public Peer() {
 
-        trackerInetAddress = null;
+        shards = new ArrayList<>();
+        shardRing = null;
 
         if (System.getProperty("os.name").contains("Linux")) {
             fileListName = System.getProperty("user.home") + "/.filetransfer/file_list.txt";
@@ -65,21 +132,25 @@ public class Peer {
             fileListName = System.getProperty("user.home") + "\\.filetransfer\\file_list.txt";
         }
 
-        trackerSocket = null;
-        disTracker = null;
-        dosTracker = null;
-        fileListUpdatedFlag = true;
-        fileRequiredFlag = false;
+        pathMap = new ConcurrentHashMap<>();
+        sizeMap = new ConcurrentHashMap<>();
+        fileListLock = new ReentrantLock();
+        manifests = new HashMap<>();
+        uploadConnections = new PeerConnectionPool();
+        uploads = new ThreadPoolExecutor(UPLOAD_SLOTS, UPLOAD_SLOTS, UPLOAD_THREAD_IDLE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(UPLOAD_QUEUE), WorkerThreads.factory("peer-upload", VIRTUAL_THREADS));
+        uploads.allowCoreThreadTimeOut(true);
         terminateFlag = false;
-        requiredFileName = null;
+        bandwidth = new BandwidthLimits();
+        //Bundled files that did not make it are asked for again on their own
+        downloads = new DownloadManager(PEER_RECEIVER_PORT, SOURCE_ACCEPT_TIMEOUT_MILLIS, bandwidth,
+                fileName -> sendFileRequired(shardFor(fileName), fileName));
 
         fileList = new File(fileListName);
-        if (!fileList.exists()) {
-            pathMap = new HashMap<>();
-        } else {
+        if (fileList.exists()) {
 
             try {
-                pathMap = (HashMap<String, String>) new ObjectInputStream(new FileInputStream(fileList)).readObject();
+                pathMap.putAll((HashMap<String, String>) new ObjectInputStream(new FileInputStream(fileList)).readObject());
 
             } catch (IOException | ClassNotFoundException ex) {
                 Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
@@ -87,19 +158,236 @@ public class Peer {
         }
     }
 
-    public HashMap<String, String> getPathMap() {
+    public Map<String, String> getPathMap() {
         return pathMap;
     }
 
-    
+    /**
+     * Sets the trackers to use, as a comma separated list of "host" or
+     * "host:port" entries; the port defaults to 8080. With several entries
+     * the file namespace is split between them by consistent hashing, and
+     * every peer must be given the same set.
+     */
     public void setTrackerInetAddress(String trackerInetAddress) {
 
-        this.trackerInetAddress = trackerInetAddress;
+        ArrayList<TrackerShard> configured = new ArrayList<>();
+        for (String address : trackerInetAddress.split(",")) {
+            if (!address.trim().isEmpty()) {
+                configured.add(new TrackerShard(address));
+            }
+        }
+        fileListLock.lock();
+        try {
+            shards = configured;
+            shardRing = new ShardRing(addresses(configured));
+        } finally {
+            fileListLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a tracker shard while connected. Only the files that the ring now
+     * places on the new shard move: their old shards are sent a removal
+     * and the new shard asks for its own list when it connects, so the
+     * other shards see a small delta instead of every peer registering again.
+     */
+    public void addTracker(String address) {
+
+        TrackerShard added = new TrackerShard(address);
+        List<TrackerShard> previous;
+        //The files moved carry their sizes
+        statUnsized();
+        fileListLock.lock();
+        try {
+            previous = shards;
+            ArrayList<TrackerShard> grown = new ArrayList<>(previous);
+            grown.add(added);
+            ShardRing grownRing = new ShardRing(addresses(grown));
+            int moved = 0;
+            //Before the first trackers are set no shard holds the files; the new one asks for them all
+            if (shardRing != null) {
+                for (Map.Entry<String, String> entry : pathMap.entrySet()) {
+                    int before = shardRing.shardFor(entry.getKey());
+                    int after = grownRing.shardFor(entry.getKey());
+                    if (before != after) {
+                        grown.get(before).fileListJournal.record(FileListJournal.CHANGE_REMOVE, entry.getKey(), 0);
+                        grown.get(after).fileListJournal.record(FileListJournal.CHANGE_ADD, entry.getKey(), fileSize(entry.getKey()));
+                        moved++;
+                    }
+                }
+            }
+            shards = grown;
+            shardRing = grownRing;
+            System.out.printf("Added tracker shard %s; %d of %d files moved to it%n", added, moved, pathMap.size());
+        } finally {
+            fileListLock.unlock();
+        }
+
+        for (TrackerShard shard : previous) {
+            sendFileListUpdate(shard);
+        }
+        try {
+            added.connect();
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        startCommunicating(added);
+    }
+
+    private static List<String> addresses(List<TrackerShard> shards) {
+        ArrayList<String> addresses = new ArrayList<>(shards.size());
+        for (TrackerShard shard : shards) {
+            addresses.add(shard.getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * The shard the file is registered with and requested from, or null
+     * before the trackers are set. Files shared until then are sent with
+     * the first full list each shard asks for, and files asked for wait in
+     * the download manager until their shard has connected.
+     */
+    private TrackerShard shardFor(String fileName) {
+        fileListLock.lock();
+        try {
+            ShardRing ring = shardRing;
+            return (ring == null) ? null : shards.get(ring.shardFor(fileName));
+        } finally {
+            fileListLock.unlock();
+        }
+    }
+
+    //The size the file was last listed with; statUnsized() has looked up the files shared before this run
+    private long fileSize(String fileName) {
+        Long fileSize = sizeMap.get(fileName);
+        return (fileSize == null) ? 0 : fileSize;
+    }
+
+    /**
+     * Looks up the size of the files restored from the saved file list that
+     * have not been listed yet. Called before taking the file list lock:
+     * the size of a shared directory takes a walk over all of its files.
+     */
+    private void statUnsized() {
+        for (Map.Entry<String, String> entry : pathMap.entrySet()) {
+            if (!sizeMap.containsKey(entry.getKey())) {
+                long fileSize = Math.max(0, sizeOnDisk(entry.getKey(), new File(entry.getValue())));
+                fileListLock.lock();
+                try {
+                    //Unless it was removed or listed meanwhile
+                    if (entry.getValue().equals(pathMap.get(entry.getKey()))) {
+                        sizeMap.putIfAbsent(entry.getKey(), fileSize);
+                    }
+                } finally {
+                    fileListLock.unlock();
+                }
+            }
+        }
+    }
+
+    //The size of a shared file, or of all the files under a shared directory; -1 if it is gone
+    private static long sizeOnDisk(String fileName, File file) {
+        if (!FileTree.isTree(fileName)) {
+            return file.isFile() ? file.length() : -1;
+        }
+        if (!file.isDirectory()) {
+            return -1;
+        }
+        try {
+            return FileTree.scan(file).getTotalSize();
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+            return -1;
+        }
+    }
+
+    //The name a file is shared under; a directory is shared as a whole, under its name followed by '/'
+    public static String getShareName(File file) {
+        return FileTree.shareName(file);
     }
 
     public void addToFileList(File file) {
-        //Update local path map
-        pathMap.put(file.getName(), file.getAbsolutePath());
+        String fileName = FileTree.shareName(file);
+        long fileSize = Math.max(0, sizeOnDisk(fileName, file));
+        TrackerShard shard;
+        fileListLock.lock();
+        try {
+            //Update local path map
+            String previousPath = pathMap.put(fileName, file.getAbsolutePath());
+            Long previousSize = sizeMap.put(fileName, fileSize);
+            shard = shardFor(fileName);
+            if (shard == null) {
+                //No tracker set yet; the file goes out with the first full list
+                return;
+            }
+            if (previousPath == null) {
+                shard.fileListJournal.record(FileListJournal.CHANGE_ADD, fileName, fileSize);
+            } else if (previousSize == null || previousSize != fileSize) {
+                shard.fileListJournal.record(FileListJournal.CHANGE_SIZE, fileName, fileSize);
+            }
+        } finally {
+            fileListLock.unlock();
+        }
+        //Let the tracker know right away if already connected
+        sendFileListUpdate(shard);
+    }
+
+    public void removeFromFileList(String fileName) {
+        TrackerShard shard;
+        fileListLock.lock();
+        try {
+            if (pathMap.remove(fileName) == null) {
+                return;
+            }
+            sizeMap.remove(fileName);
+            shard = shardFor(fileName);
+            if (shard == null) {
+                return;
+            }
+            shard.fileListJournal.record(FileListJournal.CHANGE_REMOVE, fileName, 0);
+        } finally {
+            fileListLock.unlock();
+        }
+        sendFileListUpdate(shard);
+    }
+
+    //Look up every shared file again and report the ones that changed size or disappeared
+    public void refreshFileList() {
+        //Looked up without the lock, then applied to the files still shared from the same path
+        HashMap<String, Long> sizes = new HashMap<>();
+        HashMap<String, String> paths = new HashMap<>(pathMap);
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            sizes.put(entry.getKey(), sizeOnDisk(entry.getKey(), new File(entry.getValue())));
+        }
+        fileListLock.lock();
+        try {
+            for (Map.Entry<String, String> entry : paths.entrySet()) {
+                if (!entry.getValue().equals(pathMap.get(entry.getKey()))) {
+                    continue;
+                }
+                long fileSize = sizes.get(entry.getKey());
+                //Without trackers only the local lists change
+                TrackerShard shard = shardFor(entry.getKey());
+                if (fileSize < 0) {
+                    pathMap.remove(entry.getKey());
+                    sizeMap.remove(entry.getKey());
+                    if (shard != null) {
+                        shard.fileListJournal.record(FileListJournal.CHANGE_REMOVE, entry.getKey(), 0);
+                    }
+                } else {
+                    Long previousSize = sizeMap.put(entry.getKey(), fileSize);
+                    if (shard != null && previousSize != null && previousSize != fileSize) {
+                        shard.fileListJournal.record(FileListJournal.CHANGE_SIZE, entry.getKey(), fileSize);
+                    }
+                }
+            }
+        } finally {
+            fileListLock.unlock();
+        }
+        for (TrackerShard shard : shards) {
+            sendFileListUpdate(shard);
+        }
     }
 
     public void addToFileList(String filePath) {
@@ -109,230 +397,909 @@ public class Peer {
     
     public void terminate() {
         terminateFlag = true;
+        //The peer is leaving: running uploads are cut off and queued ones dropped
+        uploads.shutdownNow();
+        uploadConnections.closeAll();
+        downloads.close();
+        //Each tracker closes the connection in response, which ends its communication loop
+        for (TrackerShard shard : shards) {
+            sendStatus(shard, STATE_TERMINATE);
+        }
     }
 
-    public void connectToTracker() {
+    //Push a change of state to a tracker; the tracker never polls for it
+    private void sendStatus(TrackerShard shard, byte status) {
+        if (!shard.isConnected()) {
+            //Not connected yet; the state is sent once the tracker asks for the file list
+            return;
+        }
         try {
-            trackerSocket = new Socket(trackerInetAddress, TRACKER_PORT);
+            shard.writeLock.lock();
+            try {
+                shard.getOutput().write(status);
+            } finally {
+                shard.writeLock.unlock();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
-            dosTracker = new DataOutputStream(trackerSocket.getOutputStream());
-            disTracker = new DataInputStream(trackerSocket.getInputStream());
+    //Report an upload as done, freeing its slot on the tracker for the next request queued for this peer
+    private void sendUploadComplete(TrackerShard shard, long requestId) {
+        if (!shard.isConnected()) {
+            //A new session does not know the request any more
+            return;
+        }
+        try {
+            shard.writeLock.lock();
+            try {
+                shard.getOutput().write(STATE_UPLOAD_COMPLETE);
+                shard.getOutput().writeLong(requestId);
+            } finally {
+                shard.writeLock.unlock();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
+    //Ask a tracker for the sources of a file
+    private void sendFileRequired(TrackerShard shard, String fileName) {
+        if (shard == null || !shard.isConnected()) {
+            //Not connected yet; asked for once the tracker asks for the file list
+            return;
+        }
+        try {
+            shard.writeLock.lock();
+            try {
+                if (shard.sentListVersion < 0) {
+                    //Goes out with the first file list of the session
+                    return;
+                }
+                shard.getOutput().write(STATE_FILE_REQUIRED);
+                //Send the name of the required file
+                shard.getOutput().writeUTF(fileName);
+            } finally {
+                shard.writeLock.unlock();
+            }
         } catch (IOException ex) {
             Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
 
+    //Ask a tracker for the sources of a batch of files
+    private void sendFilesRequired(TrackerShard shard, List<String> fileNames) {
+        if (!shard.isConnected()) {
+            //Not connected yet; asked for one by one once the tracker asks for the file list
+            return;
+        }
+        try {
+            shard.writeLock.lock();
+            try {
+                if (shard.sentListVersion < 0) {
+                    //Each goes out on its own with the first file list of the session
+                    return;
+                }
+                shard.getOutput().write(STATE_FILES_REQUIRED);
+                shard.getOutput().writeInt(fileNames.size());
+                for (String fileName : fileNames) {
+                    shard.getOutput().writeUTF(fileName);
+                }
+            } finally {
+                shard.writeLock.unlock();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
+    public void connectToTracker() {
+        for (TrackerShard shard : shards) {
+            try {
+                shard.connect();
+            } catch (IOException ex) {
+                Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        if (heartbeat == null) {
+            heartbeat = new Thread(this::sendHeartbeats, "peer-heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+        }
+    }
+
+    //The trackers evict a peer that stays silent for too long; keep them posted while idle
+    private void sendHeartbeats() {
+        while (!terminateFlag) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            //Nothing to do while reconnecting; the new connection counts as a sign of life
+            for (TrackerShard shard : shards) {
+                sendStatus(shard, STATE_IDLE);
+            }
+        }
+    }
+
+    //Serves every tracker shard on its own thread; returns once all connections have ended
     public void communicateWithTracker() {
 
-        boolean loopFlag = true;
+        ArrayList<Thread> loops = new ArrayList<>();
+        for (TrackerShard shard : shards) {
+            loops.add(startCommunicating(shard));
+        }
+        for (Thread loop : loops) {
+            try {
+                loop.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private Thread startCommunicating(final TrackerShard shard) {
+        Thread loop = new Thread(() -> communicateWithTracker(shard), "peer-tracker-" + shard);
+        loop.start();
+        return loop;
+    }
+
+    private void communicateWithTracker(TrackerShard shard) {
+
+        boolean loopFlag = shard.isConnected() || reconnectToTracker(shard);
 
         while (loopFlag) {
             try {
-                byte command = (byte) disTracker.read();
+                DataInputStream disTracker = shard.getInput();
+                //Block until the tracker has something for this peer
+                int command = disTracker.read();
 
                 switch (command) {
                     case SEND_FILE_LIST: {
-                        sendFileList();
+                        //Tracker follows up with the epoch and version of the list it has
+                        long trackerEpoch = disTracker.readLong();
+                        long trackerVersion = disTracker.readLong();
+                        sendFileList(shard, trackerEpoch, trackerVersion);
+                        if (terminateFlag) {
+                            sendStatus(shard, STATE_TERMINATE);
+                        }
                         break;
                     }
                     case SEND_PEER_STATUS: {
+                        //Status is pushed as it changes; nothing new to report
+                        sendStatus(shard, STATE_IDLE);
+                        break;
+                    }
+                    case COMMUNICATE_WITH_PEER: {
 
-                        if (terminateFlag) {
-                            dosTracker.write(STATE_TERMINATE);
-                            this.terminateAllConnections();
-                            loopFlag = false;
+                        //Another peer requires a file that is available here
+                        //Receive the IP of the peer to connect to, the file it wants and the request id
+                        String peerInetAddress = disTracker.readUTF();
+                        String fileName = disTracker.readUTF();
+                        long requestId = disTracker.readLong();
 
-                        } else if (fileRequiredFlag) {
-                            dosTracker.write(STATE_FILE_REQUIRED);
+                        startUpload(shard, peerInetAddress, fileName, requestId, () -> communicateWithPeer(peerInetAddress, fileName));
+                        break;
+                    }
+                    case COMMUNICATE_BUNDLE: {
 
-                            //Send the name of the required file
-                            dosTracker.writeUTF(requiredFileName);
-                            //Wait for tracker's reply on file availability
-                            if (disTracker.read() == FILE_AVAILABLE) {
-                                //Tracker will follow up with number of IPs and file size in bytes
-                                int peerCount = disTracker.readInt();
-                                long fileSize = disTracker.readLong();
-                                receiveFile(peerCount, fileSize);
-                            }
+                        //Another peer requires a batch of small files available here, all to be sent over one connection
+                        String peerInetAddress = disTracker.readUTF();
+                        long requestId = disTracker.readLong();
+                        int fileCount = disTracker.readInt();
+                        List<String> fileNames = new ArrayList<>(fileCount);
+                        for (int i = 0; i < fileCount; i++) {
+                            fileNames.add(disTracker.readUTF());
+                        }
 
-                        } else if (fileListUpdatedFlag) {
-                            dosTracker.write(STATE_FILE_LIST_UPDATED);
+                        startUpload(shard, peerInetAddress, "a bundle of " + fileCount + " files", requestId, () -> sendBundle(peerInetAddress, fileNames));
+                        break;
+                    }
+                    case FILE_REQUEST_REPLY: {
 
+                        String fileName = disTracker.readUTF();
+                        if (disTracker.read() == FILE_AVAILABLE) {
+                            //Tracker will follow up with number of IPs and file size in bytes
+                            int peerCount = disTracker.readInt();
+                            long fileSize = disTracker.readLong();
+                            //Downloaded in the background; other requests go on meanwhile
+                            downloads.start(fileName, peerCount, fileSize);
                         } else {
-                            dosTracker.write(STATE_IDLE);
+                            System.out.println("File not available: " + fileName);
+                            downloads.unavailable(fileName);
                         }
                         break;
                     }
-                    case COMMUNICATE_WITH_PEER: {
+                    case FILES_BUNDLED_REPLY: {
 
-                        //Another peer requires a file that is available here
-                        //Receive the IP of the peer to connect to
-                        String peerInetAddress = disTracker.readUTF();
-
-                        communicateWithPeer(peerInetAddress);
+                        int fileCount = disTracker.readInt();
+                        for (int i = 0; i < fileCount; i++) {
+                            String fileName = disTracker.readUTF();
+                            if (disTracker.read() == FILE_AVAILABLE) {
+                                //The source offers it in a bundle
+                                downloads.expectBundled(fileName, disTracker.readLong());
+                            } else {
+                                System.out.println("File not available: " + fileName);
+                                downloads.unavailable(fileName);
+                            }
+                        }
+                        break;
+                    }
+                    case -1: {
+                        //Tracker closed the connection
+                        loopFlag = reconnectToTracker(shard);
                         break;
                     }
 
                 }
             } catch (IOException ex) {
                 Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+                loopFlag = reconnectToTracker(shard);
             }
         }
     }
 
-    public void sendFileList() {
+    /**
+     * Called when a tracker connection is lost. Unless the peer is
+     * terminating, connects again; a tracker that kept its state across a
+     * restart then only asks for the file list changes it has not seen.
+     * Returns whether the connection is up again.
+     */
+    private boolean reconnectToTracker(TrackerShard shard) {
 
-        System.out.println("Sending file list...");
-        long fileSize = 0L;
+        if (terminateFlag) {
+            this.terminateAllConnections(shard);
+            return false;
+        }
         try {
-            for (String fileName : pathMap.keySet()) {
-
-                //Send the file name
-                dosTracker.writeUTF(fileName);
-                //Send the file size
-                fileSize = new File((String) pathMap.get(fileName)).length();
-                dosTracker.writeLong(fileSize);
-            }
-            //Denote the end of file name transfer
-            dosTracker.writeUTF("end");
+            shard.close();
         } catch (IOException ex) {
             Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
         }
+        long delay = RECONNECT_MIN_MILLIS;
+        while (!terminateFlag) {
+            try {
+                Thread.sleep(delay);
+                shard.connect();
+                System.out.println("Reconnected to tracker " + shard);
+                return true;
+            } catch (IOException ex) {
+                delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        this.terminateAllConnections(shard);
+        return false;
+    }
+
+    /**
+     * Answers a tracker's request for the file list. The tracker sends the
+     * epoch and version of the list it already has; if the shard's journal
+     * still holds every change since then only those are sent. The first
+     * list of a session is followed by the files asked for of the shard
+     * before it; the tracker asks for the list again after rejecting a
+     * delta, and those requests must not be placed a second time then.
+     */
+    public void sendFileList(TrackerShard shard, long trackerEpoch, long trackerVersion) {
 
-        fileListUpdatedFlag = false;
+        //A full list carries the size of every file
+        statUnsized();
+        //Taken first, so lists reach the tracker in the order they were built
+        shard.writeLock.lock();
+        try {
+            boolean firstList = shard.sentListVersion < 0;
+            byte list[];
+            long version;
+            fileListLock.lock();
+            try {
+                boolean fullList = !shard.fileListJournal.covers(trackerEpoch, trackerVersion);
+                list = buildFileList(shard, fullList, fullList ? -1 : trackerVersion);
+                version = shard.fileListJournal.getVersion();
+            } finally {
+                fileListLock.unlock();
+            }
+            writeFileList(shard, list, version);
+            if (firstList && !terminateFlag) {
+                for (String fileName : downloads.getRequested()) {
+                    if (shardFor(fileName) == shard) {
+                        sendFileRequired(shard, fileName);
+                    }
+                }
+            }
+        } finally {
+            shard.writeLock.unlock();
+        }
     }
 
-    public void setFileRequired(String requiredFileName) {
+    //Push the changes the tracker has not seen yet
+    private void sendFileListUpdate(TrackerShard shard) {
 
-        this.requiredFileName = requiredFileName;
-        fileRequiredFlag = true;
+        shard.writeLock.lock();
+        try {
+            byte list[];
+            long version;
+            fileListLock.lock();
+            try {
+                //Before the first list the tracker will ask for everything anyway
+                if (!shard.isConnected() || shard.sentListVersion < 0 || shard.sentListVersion == shard.fileListJournal.getVersion()) {
+                    return;
+                }
+                list = buildFileList(shard, false, shard.sentListVersion);
+                version = shard.fileListJournal.getVersion();
+            } finally {
+                fileListLock.unlock();
+            }
+            writeFileList(shard, list, version);
+        } finally {
+            shard.writeLock.unlock();
+        }
     }
 
-    public void receiveFile(int peerCount, long fileSize) {
+    //The full list or the changes since baseVersion as sent to the tracker; called with the file list lock held
+    private byte[] buildFileList(TrackerShard shard, boolean fullList, long baseVersion) {
 
-        System.out.printf("Waiting for peers to connect; total: %d%nFilesize: %d%n", peerCount, fileSize);
+        FileListJournal journal = shard.fileListJournal;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
         try {
-            //Start a server socket
-            ServerSocket peerServerSocket = new ServerSocket(PEER_RECEIVER_PORT);
-            //Decide the required size of data block from each peer
-            if (fileSize < MINIMUM_FILE_SIZE_BYTES) {
-                new Thread(new PeerThread(peerServerSocket.accept(), requiredFileName, -1, 0, fileSize)).start();
+            out.write(STATE_FILE_LIST_UPDATED);
+            out.write(fullList ? LIST_FULL : LIST_DELTA);
+            out.writeLong(journal.getEpoch());
+            out.writeLong(baseVersion);
+            out.writeLong(journal.getVersion());
 
+            if (fullList) {
+                //Only the files this shard is responsible for
+                ArrayList<Map.Entry<String, String>> owned = new ArrayList<>();
+                for (Map.Entry<String, String> entry : pathMap.entrySet()) {
+                    if (shardFor(entry.getKey()) == shard) {
+                        owned.add(entry);
+                    }
+                }
+                System.out.println("Sending file list to " + shard + "...");
+                out.writeInt(owned.size());
+                for (Map.Entry<String, String> entry : owned) {
+                    out.write(FileListJournal.CHANGE_ADD);
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(fileSize(entry.getKey()));
+                }
             } else {
-                long offset = 0;
-                long blockSize = fileSize / peerCount;
-                Thread threadSet[] = new Thread[peerCount];
-
-                for (int i = 0; i < peerCount - 1; i++) {
-                    threadSet[i] = new Thread(new PeerThread(peerServerSocket.accept(), requiredFileName, i, offset, blockSize));
-                    threadSet[i].start();
-                    offset += blockSize;
+                List<FileListJournal.Change> changes = journal.since(baseVersion);
+                System.out.println("Sending " + changes.size() + " file list changes to " + shard + "...");
+                out.writeInt(changes.size());
+                for (FileListJournal.Change c : changes) {
+                    out.write(c.change);
+                    out.writeUTF(c.fileName);
+                    if (c.change != FileListJournal.CHANGE_REMOVE) {
+                        out.writeLong(c.fileSize);
+                    }
                 }
-                //Get the rest of the file from the last peer
-                threadSet[peerCount - 1] = new Thread(new PeerThread(peerServerSocket.accept(), requiredFileName, -2, offset, fileSize - offset));
-                threadSet[peerCount - 1].start();
-                //Wait till all threads have received the file
-                for (Thread t : threadSet) {
-                    try {
-                        t.join();
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } catch (IOException ex) {
+            //Not thrown by an in-memory stream
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Called with the shard's write lock held, and not the file list lock; a slow tracker holds up no one else
+    private void writeFileList(TrackerShard shard, byte list[], long version) {
+        try {
+            shard.getOutput().write(list);
+            shard.sentListVersion = version;
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Asks for a file to be downloaded. Any number of files can be asked
+     * for and downloaded at once; asking for one that is already on the
+     * way does nothing.
+     */
+    public void setFileRequired(String requiredFileName) {
+
+        //Only the shard owning the file knows who has it
+        TrackerShard shard = shardFor(requiredFileName);
+        if (shard == null) {
+            //Without one yet, the request waits for it to connect
+            downloads.request(requiredFileName);
+            return;
+        }
+        //Held across both, so the first file list of a session either carries the request or goes before it
+        shard.writeLock.lock();
+        try {
+            if (downloads.request(requiredFileName)) {
+                sendFileRequired(shard, requiredFileName);
+            }
+        } finally {
+            shard.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Asks for a file and returns a stream reading it as it downloads,
+     * right away rather than once the download is over; reads wait for the
+     * download to start and for the bytes they are after to arrive. Joins
+     * the download if the file is already on the way. Directories cannot
+     * be streamed.
+     */
+    public PieceStream streamFile(String requiredFileName) {
+
+        if (FileTree.isTree(requiredFileName)) {
+            throw new IllegalArgumentException("A directory cannot be streamed: " + requiredFileName);
+        }
+        PieceStream stream = downloads.stream(requiredFileName);
+        setFileRequired(requiredFileName);
+        return stream;
+    }
+
+    /**
+     * Asks for a batch of files at once. The small ones are sent in
+     * bundles, many files from a single source over one connection, which
+     * saves the work every single download takes; the others are downloaded
+     * as if asked for one by one.
+     */
+    public void setFilesRequired(List<String> requiredFileNames) {
+
+        //Every shard is asked for the files it owns
+        HashMap<TrackerShard, List<String>> batches = new HashMap<>();
+        for (String fileName : requiredFileNames) {
+            TrackerShard shard = shardFor(fileName);
+            if (shard == null) {
+                //Without a shard yet, the file waits for it to connect and is then asked for on its own
+                downloads.request(fileName);
+            } else {
+                batches.computeIfAbsent(shard, owner -> new ArrayList<>()).add(fileName);
+            }
+        }
+        for (Map.Entry<TrackerShard, List<String>> batch : batches.entrySet()) {
+            TrackerShard shard = batch.getKey();
+            //As for a single file, the first file list of a session either carries the batch or goes before it
+            shard.writeLock.lock();
+            try {
+                ArrayList<String> requested = new ArrayList<>();
+                for (String fileName : batch.getValue()) {
+                    if (downloads.request(fileName)) {
+                        requested.add(fileName);
                     }
                 }
+                if (!requested.isEmpty()) {
+                    sendFilesRequired(shard, requested);
+                }
+            } finally {
+                shard.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Downloads a file from the given number of sources, which the tracker
+     * has told to offer their connections to this peer. Returns when the
+     * download is over.
+     */
+    public void receiveFile(String fileName, int peerCount, long fileSize) {
+        downloads.receive(fileName, peerCount, fileSize);
+    }
+
+    /*BANDWIDTH LIMITS, in kilobytes per second; 0 for none. Changes apply to running transfers too*/
+    //All uploads together
+    public long getUploadLimit() {
+        return bandwidth.getUploadLimit();
+    }
+
+    public void setUploadLimit(long kilobytesPerSecond) {
+        bandwidth.setUploadLimit(kilobytesPerSecond);
+    }
+
+    //All downloads together
+    public long getDownloadLimit() {
+        return bandwidth.getDownloadLimit();
+    }
 
-                threadSet = null;
-
-                //Now combine all these files
-                File receivedFile = new File(requiredFileName);
-                FileOutputStream mainFOS = new FileOutputStream(receivedFile, true);
-                FileInputStream mainFIS = null;
-                File tempFile;
-                byte buf[] = new byte[BUFFER_SIZE];
-                int bytesRead;
-                
-                for (int i = 0; i < peerCount; i++) {
-
-                    tempFile = (i == peerCount - 1) ? new File(requiredFileName + "_end") : new File(requiredFileName + "_" + i);
-                    mainFIS = new FileInputStream(tempFile);
-                    
-                    while ((bytesRead = mainFIS.read(buf)) > 0) {
-                        mainFOS.write(buf, 0, bytesRead);
+    public void setDownloadLimit(long kilobytesPerSecond) {
+        bandwidth.setDownloadLimit(kilobytesPerSecond);
+    }
+
+    //Every single connection, uploading or downloading
+    public long getConnectionLimit() {
+        return bandwidth.getConnectionLimit();
+    }
+
+    public void setConnectionLimit(long kilobytesPerSecond) {
+        bandwidth.setConnectionLimit(kilobytesPerSecond);
+    }
+
+    /**
+     * Queues an upload on the upload pool, so that the tracker connection
+     * goes on being served while it runs. When every upload slot is taken
+     * and the queue is full the request is turned down at once.
+     */
+    //What is uploaded is only described, for the messages: a file name, or the size of a bundle
+    private void startUpload(TrackerShard shard, String peerInetAddress, String description, long requestId, Runnable upload) {
+        try {
+            uploads.execute(() -> {
+                try {
+                    upload.run();
+                } finally {
+                    sendUploadComplete(shard, requestId);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            System.out.println("Upload queue full; not serving " + description + " to " + peerInetAddress);
+            sendUploadComplete(shard, requestId);
+        }
+    }
+
+    //Serves the file to the peer asking for it
+    public void communicateWithPeer(String peerInetAddress, String fileName) {
+
+        //A connection left from serving this peer before saves the setup and slow start
+        PeerConnection connection = uploadConnections.take(peerInetAddress);
+        try {
+            String wanted;
+            if (connection != null) {
+                try {
+                    wanted = offerConnection(connection, fileName);
+                } catch (IOException ex) {
+                    //The receiver dropped it while it was idle
+                    connection.close();
+                    connection = null;
+                    wanted = null;
+                }
+            } else {
+                wanted = null;
+            }
+            if (connection == null) {
+                connection = new PeerConnection(connectToPeer(peerInetAddress));
+                wanted = offerConnection(connection, fileName);
+            }
+
+            if (wanted.isEmpty() || serveFile(connection, wanted)) {
+                uploadConnections.release(peerInetAddress, connection);
+                connection = null;
+            }
+
+        } catch (IOException ex) {
+            Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    //Returns the name of the file the receiver wants, or an empty name if it wants nothing
+    private String offerConnection(PeerConnection connection, String fileName) throws IOException {
+        connection.getOutput().write(PeerConnection.OFFER);
+        connection.getOutput().writeUTF(fileName);
+        connection.getOutput().flush();
+        return connection.getInput().readUTF();
+    }
+
+    /**
+     * Serves the receiver's requests for the file. Returns whether the
+     * receiver ended them cleanly, leaving the connection fit for reuse.
+     */
+    private boolean serveFile(PeerConnection connection, String fileName) throws IOException {
+
+        /*
+         After the connection is offered for a file, the peer will send the
+         required file name and the encoding it can take, which is answered
+         with the piece hashes and the encoding used, and then for every
+         piece it wants:
+         1.  Offset
+         2.  Number of bytes required from the offset
+         Requests may arrive ahead of the data for the earlier ones. Each is
+         answered in order with a status and, unless CANCEL_REQUEST and its
+         offset called it off before it came up, the bytes. An offset of
+         END_OF_REQUESTS ends them.
+         */
+        String path = pathMap.get(fileName);
+        if (path == null) {
+            throw new IOException("Asked for " + fileName + ", which is not shared");
+        }
+
+        DataInputStream disPeer = connection.getInput();
+        RateLimiter limiter = bandwidth.forUpload();
+        //Deflating is only worth it if both sides want it and the file is not compressed already
+        BlockCompressor compressor = (disPeer.readByte() == PeerConnection.ENCODING_BLOCKS && BlockCompressor.ENABLED
+                && !BlockCompressor.isCompressedMedia(path)) ? new BlockCompressor() : null;
+        //A shared directory is served as its files laid end to end, as they are now
+        FileTree tree = FileTree.isTree(fileName) ? FileTree.scan(new File(path)) : null;
+        try (PieceChannel file = (tree != null) ? new TreeChannel(new File(path), tree)
+                : new FilePieceChannel(FileChannel.open(Paths.get(path), StandardOpenOption.READ))) {
+            getManifest(path, file, tree).write(connection.getOutput());
+            connection.getOutput().writeByte(compressor != null ? PeerConnection.ENCODING_BLOCKS : PeerConnection.ENCODING_RAW);
+            connection.getOutput().flush();
+
+            //Offsets and lengths of the requests read ahead of the one being answered, so that cancellations are seen in time
+            ArrayDeque<long[]> pending = new ArrayDeque<>();
+            HashSet<Long> cancelled = new HashSet<>();
+            while (true) {
+                try {
+                    //Wait for a request only when none is waiting, then take in whatever else has already arrived
+                    while (pending.isEmpty() || disPeer.available() >= Long.BYTES) {
+                        if (!readRequest(disPeer, pending, cancelled)) {
+                            if (!pending.isEmpty()) {
+                                throw new IOException("Requests for " + fileName + " ended with " + pending.size() + " unanswered");
+                            }
+                            if (compressor != null) {
+                                System.out.printf("Sent %s: %d KB in %d KB%n", fileName, compressor.getRawBytes() / 1024, compressor.getSentBytes() / 1024);
+                            }
+                            return true;
+                        }
                     }
-                    mainFIS.close();
-                    //Delete the temporarily generated file
-                    //tempFile.delete();
+                } catch (EOFException ex) {
+                    //The receiver went away without ending its requests
+                    return false;
+                }
+                long request[] = pending.poll();
+                if (cancelled.remove(request[0])) {
+                    connection.writeStatus(PeerConnection.RANGE_CANCELLED);
+                } else {
+                    connection.writeStatus(PeerConnection.RANGE_DATA);
+                    sendRange(connection, file, request[0], request[1], compressor, limiter);
                 }
-                mainFOS.close();
+            }
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+    }
+
+    //Serves a bundle of small files to the peer asking for them, all over one connection
+    private void sendBundle(String peerInetAddress, List<String> fileNames) {
+
+        PeerConnection connection = uploadConnections.take(peerInetAddress);
+        try {
+            byte encoding = -1;
+            if (connection != null) {
+                try {
+                    encoding = offerBundle(connection, fileNames);
+                } catch (IOException ex) {
+                    //The receiver dropped it while it was idle
+                    connection.close();
+                    connection = null;
+                }
+            }
+            if (connection == null) {
+                connection = new PeerConnection(connectToPeer(peerInetAddress));
+                encoding = offerBundle(connection, fileNames);
+            }
+
+            if (serveBundle(connection, fileNames, encoding)) {
+                uploadConnections.release(peerInetAddress, connection);
+                connection = null;
             }
 
-            System.out.println("File successfully received!");
-            fileRequiredFlag = false;
-            peerServerSocket.close();
         } catch (IOException ex) {
             Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
         }
-        
     }
 
-    public void communicateWithPeer(String peerInetAddress) {
+    //Returns the encoding the receiver can take
+    private byte offerBundle(PeerConnection connection, List<String> fileNames) throws IOException {
+        connection.getOutput().write(PeerConnection.OFFER_BUNDLE);
+        connection.getOutput().writeInt(fileNames.size());
+        for (String fileName : fileNames) {
+            connection.getOutput().writeUTF(fileName);
+        }
+        connection.getOutput().flush();
+        return connection.getInput().readByte();
+    }
+
+    /**
+     * Sends the files of the bundle the receiver wants, one after the
+     * other, and returns whether the receiver ended the bundle cleanly.
+     */
+    private boolean serveBundle(PeerConnection connection, List<String> fileNames, byte encoding) throws IOException {
 
+        /*
+         After the bundle is offered, the peer answers with the encoding it
+         can take and, for every file, whether it wants it. Every file it
+         wants is sent in order:
+         1.  Size, or -1 if it cannot be sent
+         2.  Encoding of the data
+         3.  Hash of the content
+         4.  The content, raw or in blocks
+         Nothing is flushed until the end, so small files share packets. The
+         peer ends the bundle with END_OF_REQUESTS once it has all of it.
+         */
+        DataInputStream disPeer = connection.getInput();
+        DataOutputStream dosPeer = connection.getOutput();
+        boolean wanted[] = new boolean[fileNames.size()];
+        for (int i = 0; i < wanted.length; i++) {
+            wanted[i] = disPeer.readBoolean();
+        }
+        RateLimiter limiter = bandwidth.forUpload();
+        BlockCompressor compressor = (encoding == PeerConnection.ENCODING_BLOCKS && BlockCompressor.ENABLED) ? new BlockCompressor() : null;
+        byte buffer[] = new byte[BlockCompressor.BLOCK_SIZE];
         try {
-            Socket peerSocket = new Socket(peerInetAddress, PEER_RECEIVER_PORT);
-            DataInputStream disPeer = new DataInputStream(peerSocket.getInputStream());
-            DataOutputStream dosPeer = new DataOutputStream(peerSocket.getOutputStream());
-            /*
-             After connection to peer, the peer will send the following details
-             sequentially:
-             1.  Required file name
-             2.  Offset
-             3.  Number of bytes required from the offset
-             */
-
-            //Get the required file name
-            String fileName = disPeer.readUTF();
-            //Get the offset value
-            long offset = disPeer.readLong();
-            //Get the required number of bytes
-            long requiredBytes = disPeer.readLong();
-
-            long sentBytes = 0;
-            byte[] buffer = new byte[BUFFER_SIZE];
-
-            //Open the required File as a random access file
-            RandomAccessFile randomFile = new RandomAccessFile((String) pathMap.get(fileName), "r");
-
-            //Start reading and sending the bytes till required number of bytes is reached
-            randomFile.seek(offset);
-            while (sentBytes < (requiredBytes - BUFFER_SIZE)) {
-                randomFile.readFully(buffer);
-                dosPeer.write(buffer);
-                sentBytes += BUFFER_SIZE;
-            }
-            buffer = new byte[(int) (requiredBytes - sentBytes)];
-            randomFile.readFully(buffer);
-            dosPeer.write(buffer);
-
-            //Close all streams and terminate connection
-            randomFile.close();
-            dosPeer.close();
-            disPeer.close();
-            peerSocket.close();
+            for (int i = 0; i < wanted.length; i++) {
+                if (wanted[i]) {
+                    sendBundledFile(dosPeer, fileNames.get(i), compressor, buffer, limiter);
+                }
+            }
+            dosPeer.flush();
+            try {
+                return disPeer.readLong() == PeerConnection.END_OF_REQUESTS;
+            } catch (EOFException ex) {
+                //The receiver went away without ending the bundle
+                return false;
+            }
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+    }
+
+    private void sendBundledFile(DataOutputStream dosPeer, String fileName, BlockCompressor compressor, byte buffer[],
+            RateLimiter limiter) throws IOException {
 
+        String path = pathMap.get(fileName);
+        PieceChannel file = null;
+        try {
+            //A directory is laid out by the receiver from its manifest, which a bundle does not carry
+            file = (path == null || FileTree.isTree(fileName)) ? null : new FilePieceChannel(FileChannel.open(Paths.get(path), StandardOpenOption.READ));
         } catch (IOException ex) {
             Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
         }
+        //A file that has grown past a piece since the tracker heard of it is left to a download of its own
+        if (file == null || file.size() > PieceScheduler.PIECE_SIZE) {
+            System.out.println("Cannot send " + fileName + " in a bundle");
+            dosPeer.writeLong(-1);
+            if (file != null) {
+                file.close();
+            }
+            return;
+        }
+        try {
+            int size = (int) file.size();
+            boolean blocks = compressor != null && !BlockCompressor.isCompressedMedia(path);
+            dosPeer.writeLong(size);
+            dosPeer.writeByte(blocks ? PeerConnection.ENCODING_BLOCKS : PeerConnection.ENCODING_RAW);
+            dosPeer.write(PieceManifest.hashPiece(file, 0, size));
+            long sent;
+            if (blocks) {
+                long sentBefore = compressor.getSentBytes();
+                compressor.send(file, 0, size, dosPeer);
+                sent = compressor.getSentBytes() - sentBefore;
+            } else {
+                //Through the stream rather than the channel, so that small files are not sent one packet each
+                for (int position = 0; position < size;) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, Math.min(buffer.length, size - position));
+                    while (chunk.hasRemaining()) {
+                        if (file.read(chunk, position + chunk.position()) < 0) {
+                            throw new IOException(fileName + " ended while being sent");
+                        }
+                    }
+                    dosPeer.write(buffer, 0, chunk.position());
+                    position += chunk.position();
+                }
+                sent = size;
+            }
+            limiter.acquire(sent);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload of " + fileName + " interrupted");
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a request or cancellation from the receiver into the pending
+     * requests. Returns false at the end of the requests.
+     */
+    private static boolean readRequest(DataInputStream disPeer, ArrayDeque<long[]> pending, HashSet<Long> cancelled) throws IOException {
+        //Get the offset value
+        long offset = disPeer.readLong();
+        if (offset == PeerConnection.END_OF_REQUESTS) {
+            return false;
+        }
+        if (offset == PeerConnection.CANCEL_REQUEST) {
+            long cancelledOffset = disPeer.readLong();
+            //Too late for a request already answered
+            for (long request[] : pending) {
+                if (request[0] == cancelledOffset) {
+                    cancelled.add(cancelledOffset);
+                }
+            }
+            return true;
+        }
+        //Get the required number of bytes
+        pending.add(new long[]{offset, disPeer.readLong()});
+        return true;
+    }
+
+    /**
+     * Sends a requested range of the file, raw or in blocks. While a limit
+     * applies the range goes out in slices, each charged to the limits once
+     * sent.
+     */
+    private void sendRange(PeerConnection connection, PieceChannel file, long offset, long length,
+            BlockCompressor compressor, RateLimiter limiter) throws IOException {
+
+        long sliceLength = limiter.isLimited() ? RateLimiter.SLICE_BYTES : length;
+        long end = offset + length;
+        for (long position = offset; position < end; position += sliceLength) {
+            long slice = Math.min(sliceLength, end - position);
+            long sent;
+            if (compressor != null) {
+                long sentBefore = compressor.getSentBytes();
+                compressor.send(file, position, slice, connection.getOutput());
+                connection.getOutput().flush();
+                sent = compressor.getSentBytes() - sentBefore;
+            } else {
+                //Stream the range straight from the page cache to the socket
+                RangeUploader.send(file, position, slice, connection.getChannel());
+                sent = slice;
+            }
+            try {
+                limiter.acquire(sent);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload of " + file + " interrupted");
+            }
+        }
+    }
+
+    //Hashing a large file takes a while, so a manifest is kept until the file, or a file of the tree, changes
+    private PieceManifest getManifest(String path, PieceChannel file, FileTree tree) throws IOException {
+
+        long lastModified = (tree != null) ? tree.getLastModified() : new File(path).lastModified();
+        PieceManifest manifest;
+        synchronized (manifests) {
+            manifest = manifests.get(path);
+        }
+        if (manifest == null || manifest.getLastModified() != lastModified || manifest.getFileSize() != file.size()
+                || (tree != null && (manifest.getTree() == null || !tree.sameLayout(manifest.getTree())))) {
+            manifest = PieceManifest.create(file, lastModified, tree);
+            synchronized (manifests) {
+                manifests.put(path, manifest);
+            }
+        }
+        return manifest;
+    }
+
+    //The receiver may still be starting its listener when the tracker pushes the request
+    private SocketChannel connectToPeer(String peerInetAddress) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                //A channel rather than a plain socket, so that file ranges can be transferred to it
+                return SocketChannel.open(new InetSocketAddress(peerInetAddress, PEER_RECEIVER_PORT));
+            } catch (ConnectException ex) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
     }
 
-    private void terminateAllConnections() {
+    private void terminateAllConnections(TrackerShard shard) {
         try {
-            disTracker.close();
-            dosTracker.close();
-            trackerSocket.close();
+            shard.close();
 
-            //Write the pathMap to the file_list.txt file
-            new ObjectOutputStream(new FileOutputStream(fileList)).writeObject(pathMap);
+            //Write the pathMap to the file_list.txt file; a copy, kept in the format of earlier versions
+            new ObjectOutputStream(new FileOutputStream(fileList)).writeObject(new HashMap<>(pathMap));
 
         } catch (IOException ex) {
             Logger.getLogger(Peer.class.getName()).log(Level.SEVERE, null, ex);
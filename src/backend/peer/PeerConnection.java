@@ -0,0 +1,120 @@
+package backend.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection between a source and a receiver that outlives a single
+ * download. The source opens it and offers it to the receiver for every
+ * download it is asked to serve; in between it sits idle in the pools of
+ * both sides. Control data goes through the buffered streams, raw file
+ * data straight through the channel, so the streams are flushed before any
+ * channel write and nothing is buffered past what the other side has
+ * already sent. File data sent in blocks goes through the streams; so does
+ * the status ahead of it, which goes through the channel ahead of raw data.
+ *
+ * @author hexbioc
+ */
+class PeerConnection {
+
+    //Source to receiver: offers the connection for a download; followed by the file name
+    static final byte OFFER = 1;
+    //Source to receiver: offers the connection for a bundle of small files; followed by their number and names
+    static final byte OFFER_BUNDLE = 2;
+    //Sent by the receiver in place of an offset: the download needs nothing more from this connection
+    static final long END_OF_REQUESTS = -1;
+    //Sent by the receiver in place of an offset: followed by the offset of a piece requested earlier that it no longer wants
+    static final long CANCEL_REQUEST = -2;
+    /*STATUS OF A REQUEST*/
+    //The source sends one ahead of the answer to every request
+    //The requested bytes follow
+    static final byte RANGE_DATA = 0;
+    //The request was cancelled before the source got to it; nothing follows
+    static final byte RANGE_CANCELLED = 1;
+    /*ENCODINGS OF FILE DATA*/
+    //The receiver sends the one it can take after the file name, the source the one it uses after the piece hashes
+    //Raw bytes, straight through the channel
+    static final byte ENCODING_RAW = 0;
+    //Blocks through the streams, each stored or deflated; see BlockCompressor
+    static final byte ENCODING_BLOCKS = 1;
+    //How long a connection may sit unused before either side closes it
+    static final int IDLE_TIMEOUT_MILLIS = 120000;
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private long idleSince;
+
+    PeerConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        //Requests are small and flushed on purpose; do not let them wait behind unacknowledged data
+        channel.socket().setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    DataInputStream getInput() {
+        return in;
+    }
+
+    DataOutputStream getOutput() {
+        return out;
+    }
+
+    //Sends the status of a request ahead of its answer; flushed, so that it goes out ahead of raw data too
+    void writeStatus(byte status) throws IOException {
+        out.writeByte(status);
+        out.flush();
+    }
+
+    //Reads the status of a request through the streams when file data goes through them too
+    byte readStatus(boolean blocks) throws IOException {
+        if (blocks) {
+            return in.readByte();
+        }
+        //Reading through the stream could buffer raw data behind the status
+        ByteBuffer status = ByteBuffer.allocate(1);
+        while (status.hasRemaining()) {
+            if (channel.read(status) < 0) {
+                throw new EOFException("Source closed the connection before answering a request");
+            }
+        }
+        return status.get(0);
+    }
+
+    String getAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    //Limits how long a read on the input stream may block; 0 for no limit
+    void setReadTimeout(int millis) throws SocketException {
+        channel.socket().setSoTimeout(millis);
+    }
+
+    void markIdle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    boolean isStale() {
+        return !channel.isOpen() || System.currentTimeMillis() - idleSince >= IDLE_TIMEOUT_MILLIS;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            //Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package backend.peer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * The idle connections a source has to receivers, by receiver address, so
+ * that serving another download to the same receiver skips the connection
+ * setup and starts on a connection whose congestion window is already
+ * open.
+ *
+ * @author hexbioc
+ */
+class PeerConnectionPool {
+
+    private final HashMap<String, ArrayDeque<PeerConnection>> idle;
+
+    PeerConnectionPool() {
+        idle = new HashMap<>();
+    }
+
+    //An idle connection to the receiver, or null if there is none worth using
+    synchronized PeerConnection take(String address) {
+        ArrayDeque<PeerConnection> connections = idle.get(address);
+        while (connections != null && !connections.isEmpty()) {
+            PeerConnection connection = connections.pollLast();
+            if (!connection.isStale()) {
+                return connection;
+            }
+            //The receiver has given up on it by now
+            connection.close();
+        }
+        return null;
+    }
+
+    synchronized void release(String address, PeerConnection connection) {
+        connection.markIdle();
+        idle.computeIfAbsent(address, a -> new ArrayDeque<>()).addLast(connection);
+    }
+
+    synchronized void closeAll() {
+        for (ArrayDeque<PeerConnection> connections : idle.values()) {
+            for (PeerConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+}
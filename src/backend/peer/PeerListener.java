@@ -0,0 +1,96 @@
+package backend.peer;
+
+import backend.tracker.WorkerThreads;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts the connections sources open to this peer and keeps them for as
+ * long as the sources keep using them. Each connection has a thread that
+ * waits for the source to offer it for a file, hands it to the download of
+ * that file and goes back to waiting when the download is done with it.
+ *
+ * @author hexbioc
+ */
+class PeerListener implements Runnable {
+
+    private final ServerSocketChannel serverChannel;
+    private final DownloadManager downloads;
+
+    PeerListener(int port, DownloadManager downloads) throws IOException {
+        this.downloads = downloads;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        Thread thread = new Thread(this, "peer-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                PeerConnection connection = new PeerConnection(channel);
+                WorkerThreads.newThread("peer-connection-" + connection.getAddress(), () -> serve(connection), Peer.VIRTUAL_THREADS, true).start();
+            } catch (IOException ex) {
+                if (serverChannel.isOpen()) {
+                    Logger.getLogger(PeerListener.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    private void serve(PeerConnection connection) {
+        try {
+            while (true) {
+                //Wait for the source to offer the connection; give up on it after a while
+                connection.setReadTimeout(PeerConnection.IDLE_TIMEOUT_MILLIS);
+                int offer = connection.getInput().read();
+                connection.setReadTimeout(0);
+                if (offer == PeerConnection.OFFER_BUNDLE) {
+                    if (!new BundleReceiver(connection, downloads).receive()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (offer != PeerConnection.OFFER) {
+                    break;
+                }
+                //The offer names the file it is for
+                PeerThread receiver = downloads.join(connection.getInput().readUTF(), connection);
+                if (receiver == null) {
+                    //Nothing wanted from this source; it keeps the connection for later
+                    connection.getOutput().writeUTF("");
+                    connection.getOutput().flush();
+                    continue;
+                }
+                receiver.run();
+                if (!receiver.isReusable()) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            //Idle for too long
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(PeerListener.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            connection.close();
+        }
+    }
+
+    void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(PeerListener.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
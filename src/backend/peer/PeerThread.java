@@ -1,97 +1,259 @@
 package backend.peer;
 
-import backend.tracker.TrackerThread;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.JTextArea;
 
 /**
+ * Receives pieces of a file from one source peer over its connection and
+ * writes each in place into the shared, already sized target file.
+ * The source first sends the piece hashes of its copy; the pieces are then
+ * taken from the download's {@link PieceScheduler} until there are none
+ * left for this source, each handed to the {@link PieceVerifier} once
+ * written. Several pieces are asked for ahead of the one being received,
+ * so the source always has the next request at hand and the link does not
+ * go quiet between pieces. With compression enabled the pieces are asked
+ * for in blocks, which the source deflates where that pays. In the endgame
+ * a piece may be asked of this source while another is sending it too;
+ * once a copy from elsewhere has arrived, the request is called off, or
+ * the rest of the piece read and dropped if it is already on its way. Such
+ * a copy is held in memory rather than written in place, and only written
+ * once it has claimed the piece. Runs on the thread of the connection,
+ * which is kept for the next download if this one ends cleanly.
  *
  * @author hexbioc
  */
 public class PeerThread implements Runnable {
 
-    private static final int SINGLE_PART = -1;
-    private static final int FINAL_FILE_PART = -2;
-    private static final int BUFFER_SIZE = 512;
-
-    private final DataInputStream disPeer;
-    private final DataOutputStream dosPeer;
-    private final Socket peer;
-    private final String fileName;
-    private final File newFile;
-    private final int filePart;
-    private final long offset;
-    private final long requiredBytes;
-
-    public PeerThread(Socket peer, String fileName, int filePart, long offset, long requiredBytes) throws IOException {
-
-        this.peer = peer;
-        this.fileName = fileName;
-        this.filePart = filePart;
-        this.offset = offset;
-        this.requiredBytes = requiredBytes;
-
-        disPeer = new DataInputStream(peer.getInputStream());
-        dosPeer = new DataOutputStream(peer.getOutputStream());
-
-        if (this.filePart == SINGLE_PART) {
-            newFile = new File(fileName);
-        } else {
-            newFile = (this.filePart == FINAL_FILE_PART) ? new File(fileName + "_end") : new File(fileName + "_" + filePart);
-        }
-        
+    //Size of the direct buffer a piece is read into before being written
+    private static final int BUFFER_SIZE = 256 * 1024;
+    //Pieces asked for and not yet received on the connection
+    private static final int PIPELINE_DEPTH = 4;
+
+    private final PeerConnection connection;
+    private final Download download;
+    private final PieceScheduler scheduler;
+    //The pieces this source holds
+    private final BitSet pieces;
+    //Id of this source in the scheduler
+    private final int source;
+    private volatile int piecesReceived;
+    private boolean reusable;
+
+    PeerThread(PeerConnection connection, Download download, BitSet pieces) {
+
+        this.connection = connection;
+        this.download = download;
+        this.scheduler = download.scheduler;
+        this.pieces = pieces;
+        source = scheduler.addSource(pieces);
+
         System.out.println("New peer thread created. Details:");
         System.out.println(this.toString());
     }
 
     @Override
     public String toString() {
-        
+
         StringBuilder sb = new StringBuilder();
-        sb.append("Peer address\t\t: ").append(peer.getInetAddress().getHostAddress());
-        sb.append("\nFile Part\t\t: ").append(newFile.getName());
-        sb.append("\nFile Part Path\t\t: ").append(newFile.getAbsolutePath());
-        sb.append("\nBytes to receive\t: ").append(requiredBytes);
-        sb.append("\nOffset\t\t\t: ").append(offset).append("\n");
-        
+        sb.append("Peer address\t\t: ").append(connection.getAddress());
+        sb.append("\nFile\t\t\t: ").append(download.fileName);
+        sb.append("\nPieces held\t\t: ").append(pieces.cardinality()).append("\n");
+
         return sb.toString();
     }
-    
+
+    public String getSourceAddress() {
+        return connection.getAddress();
+    }
+
+    public int getPiecesReceived() {
+        return piecesReceived;
+    }
+
+    //Whether the connection is in a state to serve another download
+    boolean isReusable() {
+        return reusable;
+    }
+
+    /**
+     * Receives the piece straight into its place in the target file, or
+     * into the held buffer for an endgame copy, in blocks if there is a
+     * decompressor. Once the piece is no longer wanted the rest of it is
+     * read and dropped; returns whether all of it was kept.
+     */
+    private boolean receivePiece(int piece, ByteBuffer buffer, ByteBuffer held, BlockDecompressor decompressor, RateLimiter limiter)
+            throws IOException, InterruptedException {
+
+        long offset = scheduler.pieceOffset(piece);
+        int length = scheduler.pieceLength(piece);
+        boolean whole = true;
+        //Raw data is taken in slices while a limit applies, blocks always one at a time; each is charged to the limits
+        boolean limited = limiter.isLimited();
+        long received = 0;
+        while (received < length) {
+            int read;
+            long sent;
+            if (decompressor != null) {
+                read = (int) Math.min(BlockCompressor.BLOCK_SIZE, length - received);
+                long receivedBefore = decompressor.getReceivedBytes();
+                decompressor.read(connection.getInput(), read);
+                sent = decompressor.getReceivedBytes() - receivedBefore;
+            } else {
+                buffer.clear();
+                buffer.limit((int) Math.min(limited ? RateLimiter.SLICE_BYTES : buffer.capacity(), length - received));
+                read = connection.getChannel().read(buffer);
+                if (read < 0) {
+                    throw new IOException("Source closed the connection " + received + " bytes into piece " + piece);
+                }
+                buffer.flip();
+                sent = read;
+            }
+            if (held != null) {
+                //Kept until the copy claims the piece; pointless once another has
+                whole = whole && scheduler.isWanted(piece);
+                if (whole) {
+                    if (decompressor != null) {
+                        decompressor.copyTo(held);
+                    } else {
+                        held.put(buffer);
+                    }
+                }
+            } else if (whole) {
+                final long position = offset + received;
+                try {
+                    //Not once another copy has claimed the piece, nor after the download is over
+                    whole = scheduler.writeIfWanted(piece, () -> {
+                        if (decompressor != null) {
+                            decompressor.write(download.target, position);
+                        } else {
+                            while (buffer.hasRemaining()) {
+                                download.target.write(buffer, position + buffer.position());
+                            }
+                        }
+                    });
+                } catch (ClosedChannelException ex) {
+                    //The download is over; the rest of the piece is dropped
+                    whole = false;
+                }
+            }
+            received += read;
+            limiter.acquire(sent);
+        }
+        return whole;
+    }
+
+    //Writes a copy held apart into place once it has claimed the piece; returns false if the download is over
+    private boolean writeHeld(int piece, ByteBuffer held) throws IOException {
+        long offset = scheduler.pieceOffset(piece);
+        held.flip();
+        try {
+            while (held.hasRemaining()) {
+                download.target.write(held, offset + held.position());
+            }
+            return true;
+        } catch (ClosedChannelException ex) {
+            return false;
+        }
+    }
+
     @Override
     public void run() {
 
+        DataOutputStream dosPeer = connection.getOutput();
+        DataInputStream disPeer = connection.getInput();
+        ArrayDeque<Integer> requested = new ArrayDeque<>();
+        //Requested pieces this source has been told not to send
+        BitSet cancelled = new BitSet();
+        BlockDecompressor decompressor = null;
+        RateLimiter limiter = download.bandwidth.forDownload();
         try {
-            //Send the name of the required file to the peer
-            dosPeer.writeUTF(fileName);
-            //Send the offset value
-            dosPeer.writeLong(offset);
-            //Send the number of required bytes
-            dosPeer.writeLong(requiredBytes);
-
-            //Receive the file
-            FileOutputStream fos = new FileOutputStream(newFile);
-            int bytesRead;
-            byte buf[] = new byte[BUFFER_SIZE];
-            
-            while( (bytesRead = disPeer.read(buf)) > 0 ) {
-                fos.write(buf, 0, bytesRead);
+            //Send the name of the required file to the peer once, and the encoding this peer can take
+            dosPeer.writeUTF(download.fileName);
+            dosPeer.writeByte(BlockCompressor.ENABLED ? PeerConnection.ENCODING_BLOCKS : PeerConnection.ENCODING_RAW);
+            dosPeer.flush();
+            //The source answers with the hashes of the pieces
+            if (!download.verifier.accept(PieceManifest.read(disPeer))) {
+                throw new IOException("Source " + getSourceAddress() + " has different content for " + download.fileName);
+            }
+            //and with the encoding it will send them in
+            if (disPeer.readByte() == PeerConnection.ENCODING_BLOCKS) {
+                decompressor = new BlockDecompressor();
+            }
+
+            ByteBuffer buffer = (decompressor == null) ? ByteBuffer.allocateDirect(BUFFER_SIZE) : null;
+            while (true) {
+                //Top up the requests; only wait for a piece to become free when nothing is on the way
+                while (requested.size() < PIPELINE_DEPTH) {
+                    int piece = scheduler.next(source, requested.isEmpty());
+                    if (piece < 0) {
+                        break;
+                    }
+                    //Ask for the piece: offset and number of bytes
+                    dosPeer.writeLong(scheduler.pieceOffset(piece));
+                    dosPeer.writeLong(scheduler.pieceLength(piece));
+                    requested.add(piece);
+                }
+                //Call off the pieces another source has sent meanwhile
+                for (int piece : requested) {
+                    if (!cancelled.get(piece) && !scheduler.isWanted(piece)) {
+                        dosPeer.writeLong(PeerConnection.CANCEL_REQUEST);
+                        dosPeer.writeLong(scheduler.pieceOffset(piece));
+                        cancelled.set(piece);
+                    }
+                }
+                dosPeer.flush();
+                if (requested.isEmpty()) {
+                    break;
+                }
+
+                //The source answers the requests in order
+                int piece = requested.peek();
+                //An endgame copy of a piece another source writes in place
+                ByteBuffer held = scheduler.writesInPlace(piece, source) ? null : ByteBuffer.allocate(scheduler.pieceLength(piece));
+                boolean arrived = connection.readStatus(decompressor != null) == PeerConnection.RANGE_DATA
+                        && receivePiece(piece, buffer, held, decompressor, limiter);
+                requested.poll();
+                cancelled.clear(piece);
+                if (arrived && scheduler.arrived(piece, source)) {
+                    if (held != null && !writeHeld(piece, held)) {
+                        //The download is over
+                        scheduler.failed(piece);
+                    } else {
+                        //Done once the hash has been checked; the next piece need not wait for that
+                        download.verifier.verify(piece, source);
+                        piecesReceived++;
+                    }
+                } else {
+                    scheduler.dropped(piece, source);
+                }
             }
-            
-            //Close streams
-            fos.close();
-            disPeer.close();
-            dosPeer.close();
-            peer.close();
 
+            //Nothing more for this source; the connection stays open for the next download
+            dosPeer.writeLong(PeerConnection.END_OF_REQUESTS);
+            dosPeer.flush();
+            reusable = true;
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         } catch (IOException ex) {
-            Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
+            Logger.getLogger(PeerThread.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            if (decompressor != null) {
+                decompressor.end();
+            }
+            //Let other sources have the pieces that were asked for and not received
+            for (int piece : requested) {
+                scheduler.dropped(piece, source);
+            }
+            scheduler.removeSource(source);
+            download.finished(this);
         }
     }
 }
@@ -0,0 +1,139 @@
+package backend.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Which pieces of a download are verified and on disk, kept in a small file
+ * next to the target (name.pieces) so that a download cut short by a crash
+ * or a lost connection can carry on with only the missing pieces. The file
+ * is replaced atomically, and only after the target's data has been forced
+ * to disk, so it never claims a piece that is not really there. It is
+ * saved at most once a second while the download runs; pieces finished
+ * since the last save are simply fetched again after a crash.
+ *
+ * The digest of the manifest the pieces were checked against is kept too:
+ * if the sources now have different content, the old pieces are dropped.
+ *
+ * @author hexbioc
+ */
+class PieceBitfield {
+
+    private static final int BITFIELD_MAGIC = 0x50434246;
+    private static final int BITFIELD_FORMAT = 1;
+    private static final String SUFFIX = ".pieces";
+    private static final long SAVE_INTERVAL_MILLIS = 1000;
+
+    private final File file;
+    private final long fileSize;
+    private BitSet done;
+    //Digest of the manifest the done pieces match; null until known
+    private byte manifestDigest[];
+    private long savedAt;
+
+    private PieceBitfield(File file, long fileSize, int pieceCount) {
+        this.file = file;
+        this.fileSize = fileSize;
+        done = new BitSet(pieceCount);
+    }
+
+    /**
+     * The saved progress of the download into the target, or none if there
+     * is no usable record of it. Progress only counts if the target is
+     * still there at its full size; the files of a directory are checked
+     * piece by piece once it is laid out, see {@link PieceVerifier}.
+     */
+    static PieceBitfield open(File target, long fileSize, int pieceCount) {
+
+        PieceBitfield bitfield = new PieceBitfield(new File(target.getPath() + SUFFIX), fileSize, pieceCount);
+        if (bitfield.file.exists() && (target.isDirectory() || target.length() == fileSize)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bitfield.file)))) {
+                if (in.readInt() == BITFIELD_MAGIC && in.readInt() == BITFIELD_FORMAT
+                        && in.readLong() == fileSize && in.readInt() == PieceScheduler.PIECE_SIZE) {
+                    byte digest[] = new byte[in.readUnsignedByte()];
+                    in.readFully(digest);
+                    long words[] = new long[in.readInt()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = in.readLong();
+                    }
+                    bitfield.manifestDigest = digest;
+                    bitfield.done = BitSet.valueOf(words);
+                    System.out.println("Resuming " + target.getName() + ": " + bitfield.done.cardinality() + " of " + pieceCount + " pieces on disk");
+                }
+            } catch (IOException ex) {
+                //A damaged record is no worse than none
+                Logger.getLogger(PieceBitfield.class.getName()).log(Level.WARNING, "Ignoring " + bitfield.file, ex);
+            }
+        }
+        return bitfield;
+    }
+
+    /**
+     * Called with the manifest the download is checked against. Returns the
+     * pieces already on disk that can be kept, which is none if they were
+     * checked against a different manifest.
+     */
+    synchronized BitSet agree(PieceManifest manifest) {
+        byte digest[] = manifest.digest();
+        if (manifestDigest != null && !Arrays.equals(manifestDigest, digest)) {
+            System.out.println("The sources have changed content; starting over");
+            done.clear();
+        }
+        manifestDigest = digest;
+        return (BitSet) done.clone();
+    }
+
+    //The piece is written and verified; saved along with the others now and then
+    synchronized void pieceDone(int piece, PieceChannel target) throws IOException {
+        done.set(piece);
+        if (System.currentTimeMillis() - savedAt >= SAVE_INTERVAL_MILLIS) {
+            save(target);
+        }
+    }
+
+    synchronized void save(PieceChannel target) throws IOException {
+
+        if (manifestDigest == null) {
+            //Nothing can have been verified yet
+            return;
+        }
+        //The data must be on disk before the record saying so
+        target.force(false);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(BITFIELD_MAGIC);
+            out.writeInt(BITFIELD_FORMAT);
+            out.writeLong(fileSize);
+            out.writeInt(PieceScheduler.PIECE_SIZE);
+            out.writeByte(manifestDigest.length);
+            out.write(manifestDigest);
+            long words[] = done.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedAt = System.currentTimeMillis();
+    }
+
+    //The download is complete; nothing to resume
+    synchronized void delete() {
+        file.delete();
+    }
+}
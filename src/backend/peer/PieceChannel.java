@@ -0,0 +1,30 @@
+package backend.peer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The data of a share as the transfers see it: a single file, see
+ * {@link FilePieceChannel}, or the files of a shared directory laid end to
+ * end, see {@link TreeChannel}. Only what the transfers use: positional
+ * reads and writes, transferTo, size and force, as on a FileChannel. Reads
+ * and writes fail with a ClosedChannelException once it is closed.
+ *
+ * @author hexbioc
+ */
+interface PieceChannel extends Closeable {
+
+    long size() throws IOException;
+
+    //Reads at position without moving anything; -1 at the end
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    int write(ByteBuffer src, long position) throws IOException;
+
+    //Zero-copy where the platform can; may send less than asked for
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    void force(boolean metaData) throws IOException;
+}
@@ -0,0 +1,180 @@
+package backend.peer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The SHA-256 hash of every piece of a file, made by the peer sharing it and
+ * sent to receivers at the start of every transfer so that each piece can
+ * be checked as it lands. Pieces are {@link PieceScheduler#PIECE_SIZE}
+ * bytes, the last one possibly shorter. For a shared directory the
+ * manifest also carries its {@link FileTree}, the pieces running across
+ * the files laid end to end.
+ *
+ * @author hexbioc
+ */
+class PieceManifest {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<ByteBuffer> PIECE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(PieceScheduler.PIECE_SIZE);
+        }
+    };
+
+    private final long fileSize;
+    private final long lastModified;
+    private final byte hashes[][];
+    //The files of a shared directory; null for a single file
+    private final FileTree tree;
+
+    private PieceManifest(long fileSize, long lastModified, byte hashes[][], FileTree tree) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.hashes = hashes;
+        this.tree = tree;
+    }
+
+    /**
+     * Hashes every piece of the file, several pieces at a time. The
+     * modification time is kept so that a cached manifest can be told to be
+     * out of date. The tree is that of a shared directory, or null.
+     */
+    static PieceManifest create(PieceChannel file, long lastModified, FileTree tree) throws IOException {
+
+        long fileSize = file.size();
+        int pieceCount = (int) ((fileSize + PieceScheduler.PIECE_SIZE - 1) / PieceScheduler.PIECE_SIZE);
+        byte hashes[][] = new byte[pieceCount][];
+        IOException failures[] = new IOException[1];
+        IntStream.range(0, pieceCount).parallel().forEach(piece -> {
+            try {
+                long offset = (long) piece * PieceScheduler.PIECE_SIZE;
+                hashes[piece] = hashPiece(file, offset, (int) Math.min(PieceScheduler.PIECE_SIZE, fileSize - offset));
+            } catch (IOException ex) {
+                failures[0] = ex;
+            }
+        });
+        if (failures[0] != null) {
+            throw failures[0];
+        }
+        return new PieceManifest(fileSize, lastModified, hashes, tree);
+    }
+
+    //Reads the piece back from the file and hashes it
+    static byte[] hashPiece(PieceChannel file, long offset, int length) throws IOException {
+
+        ByteBuffer buffer = PIECE_BUFFER.get();
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File ended inside the piece at " + offset);
+            }
+        }
+        buffer.flip();
+        MessageDigest digest = newDigest();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            //Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    FileTree getTree() {
+        return tree;
+    }
+
+    int getPieceCount() {
+        return hashes.length;
+    }
+
+    boolean matches(int piece, byte hash[]) {
+        return MessageDigest.isEqual(hashes[piece], hash);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(fileSize);
+        out.writeInt(PieceScheduler.PIECE_SIZE);
+        out.writeInt(hashes.length);
+        for (byte hash[] : hashes) {
+            out.write(hash);
+        }
+        //A directory follows with its files; -1 for a single file
+        if (tree == null) {
+            out.writeInt(-1);
+        } else {
+            tree.write(out);
+        }
+    }
+
+    static PieceManifest read(DataInputStream in) throws IOException {
+
+        long fileSize = in.readLong();
+        int pieceSize = in.readInt();
+        int pieceCount = in.readInt();
+        if (pieceSize != PieceScheduler.PIECE_SIZE || fileSize < 0
+                || pieceCount != (fileSize + PieceScheduler.PIECE_SIZE - 1) / PieceScheduler.PIECE_SIZE) {
+            throw new IOException("Unusable manifest: " + fileSize + " bytes in " + pieceCount + " pieces of " + pieceSize);
+        }
+        byte hashes[][] = new byte[pieceCount][HASH_LENGTH];
+        for (byte hash[] : hashes) {
+            in.readFully(hash);
+        }
+        int fileCount = in.readInt();
+        FileTree tree = (fileCount < 0) ? null : FileTree.read(in, fileCount);
+        if (tree != null && tree.getTotalSize() != fileSize) {
+            throw new IOException("Unusable manifest: files of " + tree.getTotalSize() + " bytes in a tree of " + fileSize);
+        }
+        return new PieceManifest(fileSize, 0, hashes, tree);
+    }
+
+    //A hash of the whole manifest, to tell later whether the content is still the same
+    byte[] digest() {
+        MessageDigest digest = newDigest();
+        digest.update(ByteBuffer.allocate(8).putLong(0, fileSize));
+        for (byte hash[] : hashes) {
+            digest.update(hash);
+        }
+        if (tree != null) {
+            //The same bytes make different content when split into other files
+            ByteArrayOutputStream layout = new ByteArrayOutputStream();
+            try {
+                tree.write(new DataOutputStream(layout));
+            } catch (IOException ex) {
+                //Not thrown by an array
+                throw new IllegalStateException(ex);
+            }
+            digest.update(layout.toByteArray());
+        }
+        return digest.digest();
+    }
+
+    //Whether two manifests describe the same content
+    boolean sameContent(PieceManifest other) {
+        return fileSize == other.fileSize && Arrays.deepEquals(hashes, other.hashes)
+                && (tree == null ? other.tree == null : other.tree != null && tree.sameLayout(other.tree));
+    }
+}
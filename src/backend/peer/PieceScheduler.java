@@ -0,0 +1,512 @@
+package backend.peer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the pieces of a download to the sources as they become free.
+ * The file is cut into fixed size pieces; a source that finishes a piece
+ * asks for the next one, so faster sources end up carrying more of the
+ * file. Among the pieces a source holds, the one held by the fewest
+ * sources is handed out first, lowest index on a tie; while the download
+ * is read as it streams in, see {@link PieceStream}, the pieces are
+ * handed out in order from the one being read instead. A piece whose
+ * transfer failed goes back to be handed out again; one that arrived
+ * corrupt is not given to the same source again.
+ *
+ * Once a source finds nothing left that no other source is already
+ * receiving, the endgame starts for it: it is handed pieces still on their
+ * way from other sources, up to {@link #MAX_COPIES} copies of each, fewest
+ * copies first. The first copy to arrive in full claims the piece and is
+ * the one verified; the others are called off, so a slow source no longer
+ * holds up the end of the download. Only the copy a piece was first handed
+ * out for is written in place as it arrives, and never once the piece has
+ * been claimed; the others are kept apart and written by whichever claims
+ * the piece, so the copy verified is never a mix of several.
+ *
+ * The free pieces are kept by their availability, so picking one costs
+ * about the same whatever the size of the file and however much of it has
+ * been received; finished pieces are never looked at again.
+ *
+ * Guarded by a lock rather than the monitor, since the connection threads
+ * wait on it and may be virtual threads.
+ *
+ * @author hexbioc
+ */
+class PieceScheduler {
+
+    static final int PIECE_SIZE = 1024 * 1024;
+    //In the endgame a piece is asked of at most this many sources at once
+    static final int MAX_COPIES = 3;
+    //Locks guarding the writes in place against a claim, shared by the pieces in turn
+    private static final int WRITE_GUARDS = 64;
+
+    private final long fileSize;
+    private final int pieceCount;
+    //Number of connected sources holding each piece
+    private final int availability[];
+    private final BitSet done;
+    //Number of pieces done, kept so that it is not counted on every piece
+    private int doneCount;
+    //Number of sources receiving each piece
+    private final int copies[];
+    //Whether each piece arrived in full and is being verified
+    private final boolean claimed[];
+    //The source writing each piece in place as it arrives; -1 while none is
+    private final int writer[];
+    //Pieces neither done nor being received or verified, by their availability
+    private final ArrayList<BitSet> free;
+    //Pieces being received or verified; few at a time, and a BitSet walks all its words when the last goes
+    private final TreeSet<Integer> busy;
+    //No free piece lies below this one, so the searches need not walk the finished ones at the start
+    private int lowestFree;
+    //The pieces held by each source, by source id; null once it has gone
+    private final ArrayList<BitSet> sources;
+    //Pieces each source sent corrupt, by source id
+    private final ArrayList<BitSet> rejected;
+    //Pieces each source is receiving, by source id
+    private final ArrayList<Set<Integer>> receiving;
+    private volatile Runnable completionListener;
+    //The piece a stream is reading, which pieces are handed out in order from; -1 while nothing reads
+    private int streamPiece;
+    //Set once the download is over, complete or not
+    private boolean ended;
+    private final ReentrantLock lock;
+    //Signalled whenever a piece or a source comes or goes
+    private final Condition changed;
+    //Taken before the lock above, never after
+    private final ReentrantLock writeGuards[];
+
+    //A write of part of a piece into the target
+    interface PieceWrite {
+
+        void write() throws IOException;
+    }
+
+    PieceScheduler(long fileSize) {
+        this.fileSize = fileSize;
+        pieceCount = (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+        availability = new int[pieceCount];
+        done = new BitSet(pieceCount);
+        copies = new int[pieceCount];
+        claimed = new boolean[pieceCount];
+        writer = new int[pieceCount];
+        Arrays.fill(writer, -1);
+        free = new ArrayList<>();
+        busy = new TreeSet<>();
+        //No source holds anything yet
+        freeAt(0).set(0, pieceCount);
+        sources = new ArrayList<>();
+        rejected = new ArrayList<>();
+        receiving = new ArrayList<>();
+        streamPiece = -1;
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+        writeGuards = new ReentrantLock[WRITE_GUARDS];
+        for (int i = 0; i < WRITE_GUARDS; i++) {
+            writeGuards[i] = new ReentrantLock();
+        }
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    int getPieceCount() {
+        return pieceCount;
+    }
+
+    long pieceOffset(int piece) {
+        return (long) piece * PIECE_SIZE;
+    }
+
+    int pieceLength(int piece) {
+        return (int) Math.min(PIECE_SIZE, fileSize - pieceOffset(piece));
+    }
+
+    //The pieces of a source holding the whole file
+    BitSet allPieces() {
+        BitSet all = new BitSet(pieceCount);
+        all.set(0, pieceCount);
+        return all;
+    }
+
+    //Returns the id the source is known by from now on
+    int addSource(BitSet pieces) {
+        lock.lock();
+        try {
+            for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+                unlist(piece);
+                availability[piece]++;
+                list(piece);
+            }
+            sources.add(pieces);
+            rejected.add(new BitSet(pieceCount));
+            receiving.add(new HashSet<>());
+            changed.signalAll();
+            return sources.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The source has gone; the pieces only it held cannot be had any more
+    void removeSource(int source) {
+        lock.lock();
+        try {
+            BitSet pieces = sources.set(source, null);
+            for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+                unlist(piece);
+                availability[piece]--;
+                list(piece);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the next piece for the source and marks it as being received
+     * by it; in the endgame that may be a piece other sources are receiving
+     * too. While every piece the source could take is being received or
+     * verified, waits in case one of those fails if asked to. Returns -1
+     * once there is nothing left for this source, or nothing right now
+     * when not waiting.
+     */
+    int next(int source, boolean wait) throws InterruptedException {
+
+        lock.lock();
+        try {
+            BitSet pieces = sources.get(source);
+            BitSet refused = rejected.get(source);
+            Set<Integer> own = receiving.get(source);
+            while (true) {
+                int piece = nextFree(pieces, refused);
+                boolean waiting = false;
+                if (piece < 0) {
+                    //Only when nothing else is left, a copy of a piece on its way from another source
+                    for (int busyPiece : busy) {
+                        if (!pieces.get(busyPiece) || refused.get(busyPiece)) {
+                            continue;
+                        }
+                        waiting = true;
+                        if (!claimed[busyPiece] && !own.contains(busyPiece) && copies[busyPiece] < MAX_COPIES
+                                && (piece < 0 || copies[busyPiece] < copies[piece])) {
+                            piece = busyPiece;
+                        }
+                    }
+                }
+                if (piece >= 0) {
+                    unlist(piece);
+                    copies[piece]++;
+                    list(piece);
+                    own.add(piece);
+                    if (writer[piece] < 0) {
+                        writer[piece] = source;
+                    }
+                    return piece;
+                }
+                if (!waiting || !wait) {
+                    return -1;
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The free piece to hand the source next: the rarest it holds, lowest
+     * index on a tie, or while a stream reads the first from the one being
+     * read on, those before it only after all the others. -1 if none is
+     * free. Called with the lock held.
+     */
+    private int nextFree(BitSet pieces, BitSet refused) {
+        int lowest = pieceCount;
+        for (BitSet set : free) {
+            int found = set.nextSetBit(lowestFree);
+            if (found >= 0 && found < lowest) {
+                lowest = found;
+            }
+        }
+        lowestFree = lowest;
+        if (streamPiece >= 0) {
+            int first = firstFree(pieces, refused, Math.max(streamPiece, lowestFree));
+            return (first >= 0) ? first : firstFree(pieces, refused, lowestFree);
+        }
+        //A piece the source holds is held by at least one source
+        for (int held = 1; held < free.size(); held++) {
+            int first = firstIn(free.get(held), pieces, refused, lowestFree);
+            if (first >= 0) {
+                return first;
+            }
+        }
+        return -1;
+    }
+
+    //The lowest free piece from the given one on that the source can be asked for, whatever its availability
+    private int firstFree(BitSet pieces, BitSet refused, int from) {
+        int first = -1;
+        for (int held = 1; held < free.size(); held++) {
+            int found = firstIn(free.get(held), pieces, refused, from);
+            if (found >= 0 && (first < 0 || found < first)) {
+                first = found;
+            }
+        }
+        return first;
+    }
+
+    //The lowest piece of the set from the given one on that the source holds and did not send corrupt
+    private static int firstIn(BitSet set, BitSet pieces, BitSet refused, int from) {
+        for (int piece = set.nextSetBit(from); piece >= 0; piece = set.nextSetBit(piece + 1)) {
+            if (pieces.get(piece) && !refused.get(piece)) {
+                return piece;
+            }
+        }
+        return -1;
+    }
+
+    private BitSet freeAt(int held) {
+        while (free.size() <= held) {
+            free.add(new BitSet(pieceCount));
+        }
+        return free.get(held);
+    }
+
+    //Takes the piece out of the free and busy sets before its state changes; called with the lock held
+    private void unlist(int piece) {
+        if (availability[piece] < free.size()) {
+            free.get(availability[piece]).clear(piece);
+        }
+        busy.remove(piece);
+    }
+
+    //Puts the piece back in the set for its new state; called with the lock held
+    private void list(int piece) {
+        if (done.get(piece)) {
+            return;
+        }
+        if (claimed[piece] || copies[piece] > 0) {
+            busy.add(piece);
+        } else {
+            freeAt(availability[piece]).set(piece);
+            lowestFree = Math.min(lowestFree, piece);
+        }
+    }
+
+    /**
+     * The source received the piece in full. Returns whether its copy is
+     * the first and claims the piece, in which case it is to be verified.
+     */
+    boolean arrived(int piece, int source) {
+        //Any write in place of the piece still going on ends first; none follows the claim
+        ReentrantLock guard = writeGuards[piece % WRITE_GUARDS];
+        guard.lock();
+        try {
+            lock.lock();
+            try {
+                release(piece, source);
+                if (done.get(piece) || claimed[piece]) {
+                    return false;
+                }
+                unlist(piece);
+                claimed[piece] = true;
+                list(piece);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    //Whether the source writes the piece in place; otherwise it keeps its copy apart until it claims the piece
+    boolean writesInPlace(int piece, int source) {
+        lock.lock();
+        try {
+            return writer[piece] == source;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Writes part of the piece in place unless another copy has claimed it meanwhile; returns whether it was written
+    boolean writeIfWanted(int piece, PieceWrite write) throws IOException {
+        ReentrantLock guard = writeGuards[piece % WRITE_GUARDS];
+        guard.lock();
+        try {
+            if (!isWanted(piece)) {
+                return false;
+            }
+            write.write();
+            return true;
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    //The source stopped receiving the piece without a complete copy
+    void dropped(int piece, int source) {
+        lock.lock();
+        try {
+            release(piece, source);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(int piece, int source) {
+        receiving.get(source).remove(piece);
+        unlist(piece);
+        copies[piece]--;
+        list(piece);
+        if (writer[piece] == source) {
+            writer[piece] = -1;
+        }
+        changed.signalAll();
+    }
+
+    //Whether the piece still needs a copy; once another one has arrived the rest are of no use
+    boolean isWanted(int piece) {
+        lock.lock();
+        try {
+            return !done.get(piece) && !claimed[piece];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Pieces that are already on disk from an earlier attempt
+    void markDone(BitSet pieces) {
+        lock.lock();
+        try {
+            for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+                finish(piece);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Called with the lock held
+    private void finish(int piece) {
+        if (!done.get(piece)) {
+            unlist(piece);
+            done.set(piece);
+            doneCount++;
+        }
+    }
+
+    //The piece was verified
+    void completed(int piece) {
+        boolean complete;
+        lock.lock();
+        try {
+            claimed[piece] = false;
+            finish(piece);
+            changed.signalAll();
+            complete = doneCount == pieceCount;
+        } finally {
+            lock.unlock();
+        }
+        //Outside the lock; the listener takes the download's lock, which is held while asking isComplete()
+        if (complete && completionListener != null) {
+            completionListener.run();
+        }
+    }
+
+    //The claimed piece could not be verified; it has to be received again
+    void failed(int piece) {
+        lock.lock();
+        try {
+            unlist(piece);
+            claimed[piece] = false;
+            list(piece);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The piece from the source did not match its hash; another source has to send it
+    void rejected(int piece, int source) {
+        lock.lock();
+        try {
+            rejected.get(source).set(piece);
+            failed(piece);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //A stream is reading the piece; the pieces from there on are handed out first
+    void streamFrom(int piece) {
+        lock.lock();
+        try {
+            streamPiece = piece;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Waits until the piece has been verified; returns false if the download ended without it
+    boolean await(int piece) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!done.get(piece)) {
+                if (ended) {
+                    return false;
+                }
+                changed.await();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isDone(int piece) {
+        lock.lock();
+        try {
+            return done.get(piece);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The download is over; streams waiting for pieces that did not come are let go
+    void end() {
+        lock.lock();
+        try {
+            ended = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Run once the last piece has been verified
+    void setCompletionListener(Runnable listener) {
+        completionListener = listener;
+    }
+
+    boolean isComplete() {
+        lock.lock();
+        try {
+            return doneCount == pieceCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
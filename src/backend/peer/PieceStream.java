@@ -0,0 +1,225 @@
+package backend.peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file being downloaded, read from the start as it streams in, so that
+ * it can be played or processed long before the download is over. A read
+ * waits only until the piece under the read position has arrived and been
+ * verified; data that has not been checked against its hash is never
+ * handed out. While a stream reads a download, its pieces are handed out
+ * in order from the one being read, see {@link PieceScheduler}, so the
+ * first bytes take as long as the first piece whatever the size of the
+ * file. skip() moves ahead without waiting for the pieces in between.
+ *
+ * Both an InputStream and a ReadableByteChannel; to be read by one thread
+ * at a time. Closing the stream does not stop the download. A read past
+ * what an incomplete download got fails.
+ *
+ * @author hexbioc
+ */
+public final class PieceStream extends InputStream implements ReadableByteChannel {
+
+    private final String fileName;
+    //Set once the download starts
+    private volatile PieceScheduler scheduler;
+    private volatile FileChannel file;
+    //Why the download could not start
+    private String failure;
+    private volatile boolean closed;
+    //Guards the above; readers wait on it, and they may be virtual threads
+    private final ReentrantLock lock;
+    //Signalled when the download starts, cannot start or the stream is closed
+    private final Condition started;
+    //Only the reading thread moves these
+    private long position;
+    //The piece the scheduler was last told this stream reads
+    private int streamPiece;
+
+    PieceStream(String fileName) {
+        this.fileName = fileName;
+        streamPiece = -1;
+        lock = new ReentrantLock();
+        started = lock.newCondition();
+    }
+
+    //The download has started; the file is there to be read from now on
+    void attach(PieceScheduler download) {
+        try {
+            FileChannel opened = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            lock.lock();
+            try {
+                if (closed) {
+                    opened.close();
+                    return;
+                }
+                file = opened;
+                scheduler = download;
+                started.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PieceStream.class.getName()).log(Level.SEVERE, null, ex);
+            fail("Cannot read " + fileName);
+        }
+    }
+
+    //The download of the file did not start
+    void fail(String reason) {
+        lock.lock();
+        try {
+            if (scheduler == null) {
+                failure = reason;
+                started.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PieceScheduler awaitStart() throws IOException {
+        lock.lock();
+        try {
+            while (scheduler == null) {
+                if (closed) {
+                    throw new AsynchronousCloseException();
+                }
+                if (failure != null) {
+                    throw new IOException(failure);
+                }
+                started.await();
+            }
+            return scheduler;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the download of " + fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Reads what it can of the piece under the read position, waiting for it to arrive if need be
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        PieceScheduler download = awaitStart();
+        if (position >= download.getFileSize()) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int piece = (int) (position / PieceScheduler.PIECE_SIZE);
+        if (piece != streamPiece) {
+            download.streamFrom(piece);
+            streamPiece = piece;
+        }
+        try {
+            if (!download.await(piece)) {
+                throw new IOException("Download of " + fileName + " ended before byte " + position + " arrived");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for byte " + position + " of " + fileName);
+        }
+        //Only up to the end of the piece; the next one may not be there yet
+        long pieceEnd = download.pieceOffset(piece) + download.pieceLength(piece);
+        int length = (int) Math.min(dst.remaining(), pieceEnd - position);
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            while (dst.hasRemaining()) {
+                if (file.read(dst, position + length - dst.remaining()) < 0) {
+                    throw new IOException(fileName + " is shorter than its download");
+                }
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte single[] = new byte[1];
+        int count = read(single, 0, 1);
+        return (count < 0) ? -1 : single[0] & 0xff;
+    }
+
+    //Moves ahead without waiting for the pieces skipped, which come later unless read
+    @Override
+    public long skip(long n) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        PieceScheduler download = awaitStart();
+        long skipped = Math.max(0, Math.min(n, download.getFileSize() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    //What is left of the piece under the read position if it has arrived, which can be read without waiting
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        PieceScheduler download = scheduler;
+        if (download == null || position >= download.getFileSize()) {
+            return 0;
+        }
+        int piece = (int) (position / PieceScheduler.PIECE_SIZE);
+        if (!download.isDone(piece)) {
+            return 0;
+        }
+        return (int) (download.pieceOffset(piece) + download.pieceLength(piece) - position);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    //A read waiting for a piece goes on waiting until it arrives or the download ends
+    @Override
+    public void close() throws IOException {
+        FileChannel opened;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            opened = file;
+            started.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (opened != null) {
+            opened.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package backend.peer;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks received pieces against the download's manifest on a pool of
+ * hashing threads, so the threads reading from the sources can go on to
+ * their next piece straight away. A piece only counts as done once its
+ * hash matches; a corrupt one is handed back to the scheduler to be
+ * fetched again from another source. Verified pieces are recorded in the
+ * download's {@link PieceBitfield}.
+ *
+ * @author hexbioc
+ */
+class PieceVerifier {
+
+    private final PieceChannel target;
+    private final PieceScheduler scheduler;
+    private final PieceBitfield bitfield;
+    private final ExecutorService hashingPool;
+    //The manifest of the first source to connect; every other source must agree with it
+    private PieceManifest manifest;
+
+    //The hashing pool is shared with other downloads
+    PieceVerifier(PieceChannel target, PieceScheduler scheduler, PieceBitfield bitfield, ExecutorService hashingPool) {
+        this.target = target;
+        this.scheduler = scheduler;
+        this.bitfield = bitfield;
+        this.hashingPool = hashingPool;
+    }
+
+    /**
+     * Takes the manifest a source sent. Returns false if it describes
+     * different content from the one already agreed on, or a file of a
+     * different size than the tracker reported, or a single file where a
+     * directory was asked for or the other way round, in which case nothing
+     * should be taken from that source. The first manifest taken lays out
+     * a directory being received.
+     */
+    synchronized boolean accept(PieceManifest sourceManifest) throws IOException {
+        if (sourceManifest.getFileSize() != scheduler.getFileSize()
+                || (sourceManifest.getTree() != null) != (target instanceof TreeChannel)) {
+            return false;
+        }
+        if (manifest == null) {
+            BitSet done = bitfield.agree(sourceManifest);
+            if (target instanceof TreeChannel) {
+                ((TreeChannel) target).layOut(sourceManifest.getTree());
+                //The files of a tree are not forced to disk one by one, so what an earlier attempt left is checked again
+                done = stillIntact(sourceManifest, done);
+            }
+            manifest = sourceManifest;
+            //No piece has been handed out yet; skip those an earlier attempt finished
+            scheduler.markDone(done);
+            return true;
+        }
+        return manifest.sameContent(sourceManifest);
+    }
+
+    //The pieces on disk that still match the manifest, hashed several at a time
+    private BitSet stillIntact(PieceManifest agreed, BitSet done) {
+        BitSet intact = new BitSet();
+        done.stream().parallel().forEach(piece -> {
+            try {
+                if (agreed.matches(piece, PieceManifest.hashPiece(target, scheduler.pieceOffset(piece), scheduler.pieceLength(piece)))) {
+                    synchronized (intact) {
+                        intact.set(piece);
+                    }
+                }
+            } catch (IOException ex) {
+                //Fetched again like any other missing piece
+                Logger.getLogger(PieceVerifier.class.getName()).log(Level.WARNING, null, ex);
+            }
+        });
+        if (intact.cardinality() < done.cardinality()) {
+            System.out.println((done.cardinality() - intact.cardinality()) + " pieces on disk no longer match; fetching them again");
+        }
+        return intact;
+    }
+
+    //The piece has been written in full; hash it in the background
+    void verify(int piece, int source) {
+        PieceManifest agreed;
+        synchronized (this) {
+            agreed = manifest;
+        }
+        hashingPool.execute(() -> {
+            try {
+                byte hash[] = PieceManifest.hashPiece(target, scheduler.pieceOffset(piece), scheduler.pieceLength(piece));
+                if (agreed.matches(piece, hash)) {
+                    //Recorded before the scheduler hears of it, so a finished download is never recorded again
+                    try {
+                        bitfield.pieceDone(piece, target);
+                    } catch (IOException ex) {
+                        //The piece is still good; it just may have to be fetched again after a crash
+                        Logger.getLogger(PieceVerifier.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    scheduler.completed(piece);
+                } else {
+                    System.out.println("Piece " + piece + " failed verification; fetching it again");
+                    scheduler.rejected(piece, source);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(PieceVerifier.class.getName()).log(Level.SEVERE, null, ex);
+                scheduler.failed(piece);
+            }
+        });
+    }
+}
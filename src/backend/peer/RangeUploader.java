@@ -0,0 +1,106 @@
+package backend.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a range of a file to a socket. The bytes are handed to the kernel
+ * with {@link FileChannel#transferTo}, which on Linux is sendfile(2): the
+ * data goes from the page cache to the socket without ever being copied
+ * into the Java heap. Where the kernel cannot do it, transferTo copies by
+ * itself; only a channel that does not support it at all has the range
+ * copied here, through one large direct buffer, which still avoids the
+ * heap and keeps the number of system calls low. Setting
+ * -Dpeer.zerocopy=false forces the copying path.
+ *
+ * @author hexbioc
+ */
+public final class RangeUploader {
+
+    private static final boolean ZERO_COPY = !"false".equals(System.getProperty("peer.zerocopy"));
+    //Size of the copy buffer of the fallback path
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    //Set once transferTo has turned out to be unsupported, so it is not tried for every upload
+    private static volatile boolean zeroCopyBroken = false;
+
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+    };
+
+    private RangeUploader() {
+    }
+
+    //A plain file, as the benchmarks send it
+    public static void send(FileChannel file, long offset, long length, WritableByteChannel target) throws IOException {
+        send(new FilePieceChannel(file), offset, length, target);
+    }
+
+    public static void copy(FileChannel file, long offset, long length, WritableByteChannel target) throws IOException {
+        copy(new FilePieceChannel(file), offset, length, target);
+    }
+
+    /**
+     * Writes length bytes of the file starting at offset to the blocking
+     * channel. Fails with an IOException if the file is shorter than the
+     * range or the connection breaks.
+     */
+    static void send(PieceChannel file, long offset, long length, WritableByteChannel target) throws IOException {
+
+        long position = offset;
+        long end = offset + length;
+        if (ZERO_COPY && !zeroCopyBroken) {
+            try {
+                while (position < end) {
+                    long sent = file.transferTo(position, end - position, target);
+                    if (sent <= 0) {
+                        if (position >= file.size()) {
+                            throw new IOException("File ended " + (end - position) + " bytes before the requested range");
+                        }
+                        //Nothing moved although the file has data; let the copying path finish the range
+                        break;
+                    }
+                    position += sent;
+                }
+            } catch (UnsupportedOperationException ex) {
+                //Any IOException is a real failure; only this says the channels cannot transfer at all
+                if (position != offset) {
+                    throw ex;
+                }
+                //Nothing has been sent yet, so copy instead from now on
+                Logger.getLogger(RangeUploader.class.getName()).log(Level.WARNING, "Zero-copy upload not available, copying instead", ex);
+                zeroCopyBroken = true;
+            }
+        }
+        copy(file, position, end - position, target);
+    }
+
+    //The fallback path on its own: copies the range through a direct buffer
+    static void copy(PieceChannel file, long offset, long length, WritableByteChannel target) throws IOException {
+
+        long position = offset;
+        long end = offset + length;
+        ByteBuffer buffer = COPY_BUFFER.get();
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended " + (end - position) + " bytes before the requested range");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            position += read;
+        }
+    }
+}
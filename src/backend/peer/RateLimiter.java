@@ -0,0 +1,80 @@
+package backend.peer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket over bytes. Transfers are charged after the bytes have
+ * moved: the bucket may go into debt, and the caller then sleeps until the
+ * debt is paid off, so a transfer of any size is held to the rate on
+ * average without having to be cut to the size of the bucket first.
+ * Concurrent transfers charged to the same bucket share its rate, each
+ * waiting for the debt of those before it. The sleeping is done outside the
+ * lock, so the lock is only held for a few arithmetic operations.
+ *
+ * The rate is read on every charge, so it can be changed while transfers
+ * run. A limiter can have a parent, which is charged as well; a
+ * connection's limiter has the peer's limiter for that direction as
+ * parent.
+ *
+ * @author hexbioc
+ */
+final class RateLimiter {
+
+    //Transfers are charged in slices of at most this many bytes, so that shaping stays smooth at low rates;
+    //one compression block, so that a slice never splits a block
+    static final int SLICE_BYTES = BlockCompressor.BLOCK_SIZE;
+    //An idle bucket saves up at most this much time's worth of bytes
+    private static final double BURST_SECONDS = 0.1;
+
+    //Bytes per second; 0 or less for no limit
+    private final LongSupplier rate;
+    private final RateLimiter parent;
+    private final ReentrantLock lock;
+    //May be negative: bytes sent ahead of the rate
+    private double tokens;
+    private long refilledAt;
+
+    RateLimiter(LongSupplier rate, RateLimiter parent) {
+        this.rate = rate;
+        this.parent = parent;
+        lock = new ReentrantLock();
+        refilledAt = System.nanoTime();
+    }
+
+    //Whether this limiter or its parent limits anything right now
+    boolean isLimited() {
+        return rate.getAsLong() > 0 || (parent != null && parent.isLimited());
+    }
+
+    //Charges bytes that have been transferred, sleeping while the bucket is in debt
+    void acquire(long bytes) throws InterruptedException {
+
+        long bytesPerSecond = rate.getAsLong();
+        long waitNanos = 0;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (bytesPerSecond <= 0) {
+                //No limit; start from an empty bucket once there is one again
+                tokens = 0;
+            } else {
+                tokens = Math.min(bytesPerSecond * BURST_SECONDS, tokens + (now - refilledAt) * (bytesPerSecond / 1e9));
+                tokens -= bytes;
+                if (tokens < 0) {
+                    waitNanos = (long) (-tokens * 1e9 / bytesPerSecond);
+                }
+            }
+            refilledAt = now;
+        } finally {
+            lock.unlock();
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        if (parent != null) {
+            parent.acquire(bytes);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package backend.peer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring deciding which tracker shard owns a file name. Each
+ * shard is placed on the ring at many points (virtual nodes) so that files
+ * spread evenly; a file belongs to the first shard point at or after its
+ * own hash. Adding a shard to N others only moves about 1/(N+1) of the
+ * files, all of them to the new shard.
+ *
+ * Every peer must build the ring from the same shard addresses, in any
+ * order, to agree on the owners.
+ *
+ * @author hexbioc
+ */
+class ShardRing {
+
+    private static final int VIRTUAL_NODES = 160;
+
+    private final long points[];
+    //Index into the shard list of the shard at each point
+    private final int pointShards[];
+    private final int shardCount;
+
+    ShardRing(List<String> shardAddresses) {
+        shardCount = shardAddresses.size();
+        long unsorted[] = new long[shardCount * VIRTUAL_NODES];
+        int shardOf[] = new int[unsorted.length];
+        int n = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                unsorted[n] = hash(shardAddresses.get(shard) + "#" + node);
+                shardOf[n++] = shard;
+            }
+        }
+        //Sort the points, carrying their shard along
+        Integer order[] = new Integer[unsorted.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        points = new long[unsorted.length];
+        pointShards = new int[unsorted.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = unsorted[order[i]];
+            pointShards[i] = shardOf[order[i]];
+        }
+    }
+
+    //Index of the shard owning the file, in the order the addresses were given
+    int shardFor(String fileName) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int position = Arrays.binarySearch(points, hash(fileName));
+        if (position < 0) {
+            position = -position - 1;
+        }
+        //Past the last point the ring wraps around to the first
+        return pointShards[position == points.length ? 0 : position];
+    }
+
+    //64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer to spread close keys
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1a85394L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
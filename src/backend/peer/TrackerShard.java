@@ -0,0 +1,93 @@
+package backend.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The connection to one tracker shard and the part of the shared file list
+ * it is responsible for. Every shard gets its own journal, so each one is
+ * sent the changes to its own files only and keeps its own list version.
+ * Writes to the tracker are made while holding its write lock.
+ *
+ * @author hexbioc
+ */
+class TrackerShard {
+
+    static final int DEFAULT_TRACKER_PORT = 8080;
+
+    private final String host;
+    private final int port;
+    //Changes to the files owned by this shard; guarded by the peer's file list lock
+    final FileListJournal fileListJournal;
+    //Version of the file list last sent to this shard; -1 before the first list of a session. Guarded by the write lock
+    long sentListVersion;
+    //Held while writing to the tracker; a lock rather than a monitor, since upload threads may be virtual threads
+    final ReentrantLock writeLock;
+    private volatile Socket socket;
+    private DataOutputStream dos;
+    private DataInputStream dis;
+
+    //Accepts "host" or "host:port"
+    TrackerShard(String address) {
+        address = address.trim();
+        int colon = address.lastIndexOf(':');
+        if (colon > 0 && address.indexOf(':') == colon) {
+            host = address.substring(0, colon);
+            port = Integer.parseInt(address.substring(colon + 1));
+        } else {
+            host = address;
+            port = DEFAULT_TRACKER_PORT;
+        }
+        fileListJournal = new FileListJournal();
+        sentListVersion = -1;
+        writeLock = new ReentrantLock();
+    }
+
+    //The shard's identity on the ring; the same for every peer using the same address
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    void connect() throws IOException {
+        Socket connected = new Socket(host, port);
+        writeLock.lock();
+        try {
+            socket = connected;
+            dos = new DataOutputStream(connected.getOutputStream());
+            dis = new DataInputStream(connected.getInputStream());
+            //A new session; the tracker asks for the list and the files asked for go out after it
+            sentListVersion = -1;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean isConnected() {
+        Socket current = socket;
+        return current != null && !current.isClosed();
+    }
+
+    //Callers hold the write lock while writing
+    DataOutputStream getOutput() {
+        return dos;
+    }
+
+    DataInputStream getInput() {
+        return dis;
+    }
+
+    void close() throws IOException {
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getAddress();
+    }
+}
@@ -0,0 +1,307 @@
+package backend.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The files of a {@link FileTree} seen as one file, laid end to end, so
+ * that a shared directory can be served, received and hashed by the same
+ * code as a single file. A range crossing file boundaries is read or
+ * written one file after the other; transferTo hands every file's part to
+ * the file's own channel, so uploads stay zero-copy.
+ *
+ * Only a few files are kept open at once, the least recently used being
+ * closed as others are needed, so trees of any number of files can be
+ * shared. A tree being received is laid out once its first source has
+ * said what is in it; each file is created at its full size when its first
+ * bytes arrive, so the tree is rebuilt as it streams in.
+ *
+ * Files closed to make room are not forced to disk; pieces of a tree left by an earlier attempt are checked again
+ * before they are kept, see {@link PieceVerifier}.
+ *
+ * @author hexbioc
+ */
+final class TreeChannel implements PieceChannel {
+
+    //Files kept open at once; -Dpeer.tree.open.files
+    private static final int MAX_OPEN_FILES = Integer.getInteger("peer.tree.open.files", 64);
+
+    private final File root;
+    private final boolean writable;
+    private volatile FileTree tree;
+    //Open files by their index in the tree, least recently used first; guarded by itself
+    private final LinkedHashMap<Integer, OpenFile> openFiles;
+    //Guarded by the open files
+    private boolean closed;
+
+    private static final class OpenFile {
+
+        final FileChannel channel;
+        //Reads and writes using the file right now; it is only closed once they are done
+        int users;
+        boolean evicted;
+
+        OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    //A shared directory, for reading
+    TreeChannel(File root, FileTree tree) {
+        this(root, tree, false);
+    }
+
+    //A directory being received, for reading and writing; laid out once its tree is known
+    TreeChannel(File root) {
+        this(root, null, true);
+    }
+
+    private TreeChannel(File root, FileTree tree, boolean writable) {
+        this.root = root;
+        this.tree = tree;
+        this.writable = writable;
+        openFiles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    FileTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Lays out the tree being received: its directories, and the empty
+     * files, which no bytes will ever arrive for. Files already there keep
+     * their data.
+     */
+    void layOut(FileTree received) throws IOException {
+
+        root.mkdirs();
+        HashSet<File> directories = new HashSet<>();
+        for (int file = 0; file < received.getFileCount(); file++) {
+            File place = received.resolve(root, file);
+            if (directories.add(place.getParentFile())) {
+                place.getParentFile().mkdirs();
+            }
+            if (received.getSize(file) == 0 && !place.isFile() && !place.createNewFile()) {
+                throw new IOException("Cannot create " + place);
+            }
+        }
+        tree = received;
+    }
+
+    //Takes a file for a read or write, opening it if it is not open
+    private OpenFile acquire(int file) throws IOException {
+
+        ArrayList<OpenFile> evicted = new ArrayList<>();
+        OpenFile open;
+        synchronized (openFiles) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            open = openFiles.get(file);
+            //A channel is closed under a thread interrupted while using it
+            if (open == null || !open.channel.isOpen()) {
+                open = new OpenFile(openFile(file));
+                openFiles.put(file, open);
+                Iterator<OpenFile> eldest = openFiles.values().iterator();
+                while (openFiles.size() > MAX_OPEN_FILES) {
+                    OpenFile closing = eldest.next();
+                    eldest.remove();
+                    closing.evicted = true;
+                    if (closing.users == 0) {
+                        evicted.add(closing);
+                    }
+                }
+            }
+            open.users++;
+        }
+        for (OpenFile closing : evicted) {
+            closing.channel.close();
+        }
+        return open;
+    }
+
+    private void release(OpenFile open) throws IOException {
+        boolean close;
+        synchronized (openFiles) {
+            open.users--;
+            close = open.evicted && open.users == 0;
+        }
+        if (close) {
+            open.channel.close();
+        }
+    }
+
+    //Called with the open files locked
+    private FileChannel openFile(int file) throws IOException {
+
+        File place = tree.resolve(root, file);
+        if (!writable) {
+            return FileChannel.open(place.toPath(), StandardOpenOption.READ);
+        }
+        RandomAccessFile receivedFile = new RandomAccessFile(place, "rw");
+        try {
+            //Sized up front, like a single file; every piece is written straight into its place
+            if (receivedFile.length() != tree.getSize(file)) {
+                receivedFile.setLength(tree.getSize(file));
+            }
+        } catch (IOException ex) {
+            receivedFile.close();
+            throw ex;
+        }
+        return receivedFile.getChannel();
+    }
+
+    private FileTree laidOut() throws IOException {
+        FileTree laidOut = tree;
+        if (laidOut == null) {
+            throw new IOException("Tree under " + root + " is not laid out yet");
+        }
+        return laidOut;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+
+        FileTree files = laidOut();
+        if (position >= files.getTotalSize()) {
+            return -1;
+        }
+        int read = 0;
+        int limit = dst.limit();
+        while (dst.hasRemaining() && position < files.getTotalSize()) {
+            int file = files.fileAt(position);
+            long local = position - files.getOffset(file);
+            int length = (int) Math.min(dst.remaining(), files.getSize(file) - local);
+            OpenFile open = acquire(file);
+            dst.limit(dst.position() + length);
+            try {
+                while (dst.hasRemaining()) {
+                    int count = open.channel.read(dst, local + length - dst.remaining());
+                    if (count < 0) {
+                        throw new IOException(files.getPath(file) + " has shrunk since the tree was scanned");
+                    }
+                }
+            } finally {
+                release(open);
+                dst.limit(limit);
+            }
+            read += length;
+            position += length;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+
+        FileTree files = laidOut();
+        if (position + src.remaining() > files.getTotalSize()) {
+            throw new IOException("Write of " + src.remaining() + " bytes at " + position + " runs past the end of the tree");
+        }
+        int written = 0;
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            int file = files.fileAt(position);
+            long local = position - files.getOffset(file);
+            int length = (int) Math.min(src.remaining(), files.getSize(file) - local);
+            OpenFile open = acquire(file);
+            src.limit(src.position() + length);
+            try {
+                while (src.hasRemaining()) {
+                    open.channel.write(src, local + length - src.remaining());
+                }
+            } finally {
+                release(open);
+                src.limit(limit);
+            }
+            written += length;
+            position += length;
+        }
+        return written;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+
+        FileTree files = laidOut();
+        long end = Math.min(position + count, files.getTotalSize());
+        long sent = 0;
+        while (position < end) {
+            int file = files.fileAt(position);
+            long local = position - files.getOffset(file);
+            long length = Math.min(end - position, files.getSize(file) - local);
+            OpenFile open = acquire(file);
+            long moved;
+            try {
+                moved = open.channel.transferTo(local, length, target);
+            } finally {
+                release(open);
+            }
+            sent += moved;
+            position += moved;
+            if (moved < length) {
+                //The socket took less; the caller goes on from here
+                break;
+            }
+        }
+        return sent;
+    }
+
+    @Override
+    public long size() throws IOException {
+        FileTree files = tree;
+        return files == null ? 0 : files.getTotalSize();
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<>();
+        synchronized (openFiles) {
+            for (OpenFile open : openFiles.values()) {
+                channels.add(open.channel);
+            }
+        }
+        for (FileChannel channel : channels) {
+            if (channel.isOpen()) {
+                channel.force(metaData);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<>();
+        synchronized (openFiles) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (OpenFile open : openFiles.values()) {
+                channels.add(open.channel);
+            }
+            openFiles.clear();
+        }
+        //Reads and writes still running fail as they would on a closed file
+        IOException failure = null;
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package backend.tracker;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+
+/**
+ * Concurrent index of which peers own which file. Each file maps to an
+ * entry holding its size and a sorted int array of owner ids (see
+ * {@link PeerIdTable}). Readers see an immutable snapshot of the array and
+ * never lock; writers replace the array with a compare-and-set, so writes
+ * to different files never contend and writes to the same file retry
+ * instead of blocking.
+ *
+ * Measured with backend.bench.IndexFootprint (64-bit JVM, compressed oops):
+ * a file named like "file-123456.dat" costs about 136 bytes including its
+ * name, plus 4 bytes per owner. With 4 owners per file that is 152 bytes per
+ * file, or 38 bytes per (file, owner) pair, against 529 and 132 for the
+ * HashMap of HashSets of IP strings it replaces. With 20 owners per file it
+ * is 11 bytes per pair against 75.
+ *
+ * @author hexbioc
+ */
+public class FileOwnershipIndex {
+
+    private static final int NO_OWNERS[] = new int[0];
+    //Owner array of an entry that has been removed from the map; writers must start over
+    private static final int REMOVED[] = new int[0];
+
+    static final class FileEntry {
+
+        volatile long fileSize;
+        volatile int owners[];
+
+        FileEntry(long fileSize) {
+            this.fileSize = fileSize;
+            this.owners = NO_OWNERS;
+        }
+
+        long getFileSize() {
+            return fileSize;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<FileEntry, int[]> OWNERS
+            = AtomicReferenceFieldUpdater.newUpdater(FileEntry.class, int[].class, "owners");
+
+    private final ConcurrentHashMap<String, FileEntry> files;
+
+    public FileOwnershipIndex() {
+        files = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records that the peer owns the file. The size of a file is taken from
+     * its first owner. Returns false if the peer was already an owner.
+     */
+    public boolean addOwner(String fileName, int peerId, long fileSize) {
+        while (true) {
+            FileEntry entry = files.get(fileName);
+            if (entry == null) {
+                FileEntry created = new FileEntry(fileSize);
+                entry = files.putIfAbsent(fileName, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+            int current[] = entry.owners;
+            if (current == REMOVED) {
+                //Lost a race with the removal of the last owner; the entry is gone from the map
+                files.remove(fileName, entry);
+                continue;
+            }
+            int position = Arrays.binarySearch(current, peerId);
+            if (position >= 0) {
+                return false;
+            }
+            position = -position - 1;
+            int updated[] = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, position);
+            updated[position] = peerId;
+            System.arraycopy(current, position, updated, position + 1, current.length - position);
+            if (OWNERS.compareAndSet(entry, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    //Puts back an entry read from a snapshot; the owner ids must be sorted
+    public void restoreEntry(String fileName, long fileSize, int owners[]) {
+        FileEntry entry = new FileEntry(fileSize);
+        entry.owners = owners;
+        files.put(fileName, entry);
+    }
+
+    /**
+     * Removes the peer from the owners of the file, dropping the file from
+     * the index with its last owner. Returns false if the peer was not an
+     * owner.
+     */
+    public boolean removeOwner(String fileName, int peerId) {
+        FileEntry entry = files.get(fileName);
+        if (entry == null) {
+            return false;
+        }
+        while (true) {
+            int current[] = entry.owners;
+            if (current == REMOVED) {
+                //The last owner went meanwhile, and the file may have been added again under a new entry
+                FileEntry replaced = files.get(fileName);
+                if (replaced == null || replaced == entry) {
+                    return false;
+                }
+                entry = replaced;
+                continue;
+            }
+            int position = Arrays.binarySearch(current, peerId);
+            if (position < 0) {
+                return false;
+            }
+            int updated[];
+            if (current.length == 1) {
+                updated = REMOVED;
+            } else {
+                updated = new int[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, position);
+                System.arraycopy(current, position + 1, updated, position, current.length - position - 1);
+            }
+            if (OWNERS.compareAndSet(entry, current, updated)) {
+                if (updated == REMOVED) {
+                    files.remove(fileName, entry);
+                }
+                return true;
+            }
+        }
+    }
+
+    //Removes the peer from every file it owns; returns the number of files affected
+    public int removePeer(int peerId) {
+        return removePeers(new int[]{peerId});
+    }
+
+    /**
+     * Removes all of the peers, given as sorted ids, from every file they
+     * own in a single pass over the index. Returns the number of files
+     * affected.
+     */
+    public int removePeers(int peerIds[]) {
+        int affected = 0;
+        for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+            FileEntry entry = file.getValue();
+            while (true) {
+                int current[] = entry.owners;
+                if (current == REMOVED) {
+                    break;
+                }
+                int updated[] = without(current, peerIds);
+                if (updated == current) {
+                    break;
+                }
+                if (updated.length == 0) {
+                    updated = REMOVED;
+                }
+                if (OWNERS.compareAndSet(entry, current, updated)) {
+                    if (updated == REMOVED) {
+                        files.remove(file.getKey(), entry);
+                    }
+                    affected++;
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    //The owners that are not among the removed ids; the same array if there are none
+    private static int[] without(int owners[], int removed[]) {
+        int kept[] = null;
+        int count = 0;
+        int r = 0;
+        for (int i = 0; i < owners.length; i++) {
+            while (r < removed.length && removed[r] < owners[i]) {
+                r++;
+            }
+            boolean remove = r < removed.length && removed[r] == owners[i];
+            if (remove && kept == null) {
+                kept = new int[owners.length - 1];
+                System.arraycopy(owners, 0, kept, 0, i);
+                count = i;
+            } else if (!remove && kept != null) {
+                kept[count++] = owners[i];
+            }
+        }
+        return (kept == null) ? owners : Arrays.copyOf(kept, count);
+    }
+
+    //Snapshot of the owner ids of the file, sorted; empty if the file is unknown
+    public int[] getOwners(String fileName) {
+        FileEntry entry = files.get(fileName);
+        return (entry == null) ? NO_OWNERS : entry.owners;
+    }
+
+    public boolean isOwner(String fileName, int peerId) {
+        return Arrays.binarySearch(getOwners(fileName), peerId) >= 0;
+    }
+
+    public int getOwnerCount(String fileName) {
+        return getOwners(fileName).length;
+    }
+
+    public long getFileSize(String fileName) {
+        FileEntry entry = files.get(fileName);
+        return (entry == null) ? 0 : entry.getFileSize();
+    }
+
+    public void setFileSize(String fileName, long fileSize) {
+        FileEntry entry = files.get(fileName);
+        if (entry != null) {
+            entry.fileSize = fileSize;
+        }
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    //Number of (file, owner) pairs; walks the whole index
+    public long getOwnershipCount() {
+        long pairs = 0;
+        for (FileEntry entry : files.values()) {
+            int owners[] = entry.owners;
+            if (owners != REMOVED) {
+                pairs += owners.length;
+            }
+        }
+        return pairs;
+    }
+
+    //Visit every file with its owners; sees each entry at some point during the iteration
+    public void forEach(BiConsumer<String, int[]> visitor) {
+        for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+            int owners[] = file.getValue().owners;
+            if (owners != REMOVED) {
+                visitor.accept(file.getKey(), owners);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package backend.tracker;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with power of two
+ * buckets. Recording is a couple of uncontended adds, cheap enough for the
+ * tracker's hot paths; quantiles are only as precise as the buckets (the
+ * upper bound of the bucket is reported, so at most twice the true value).
+ *
+ * @author hexbioc
+ */
+public class LatencyHistogram {
+
+    //Bucket i holds durations below 2^i ns; 2^47 ns is about 39 hours
+    private static final int BUCKETS = 48;
+
+    private final LongAdder buckets[];
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+    private final LongAccumulator maxNanos;
+
+    public LatencyHistogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        totalNanos = new LongAdder();
+        maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    //Upper bound of the bucket holding the given quantile (0 to 1); 0 if nothing was recorded
+    public long getQuantileNanos(double quantile) {
+        long counts[] = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(1L << i, getMaxNanos());
+            }
+        }
+        return 0;
+    }
+}
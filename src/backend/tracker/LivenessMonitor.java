@@ -0,0 +1,237 @@
+package backend.tracker;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices peers that have stopped talking to the tracker and evicts them
+ * from the file index. Connected peers push a heartbeat every few seconds;
+ * a peer that stays silent for longer than the timeout has its session
+ * closed. A peer whose connection is gone is kept for a grace period so that
+ * it can reconnect and revalidate its file list, and is then removed from
+ * the owners of every file at once. A peer that said goodbye is evicted on
+ * the next tick.
+ *
+ * Deadlines are kept in a hashed timing wheel: a ring of slots one tick
+ * wide, turned by a single thread. Scheduling and moving an entry to
+ * another slot are O(1), the slots being hash sets, and a heartbeat only
+ * stamps the peer's entry; the entry is moved to its new slot lazily, when
+ * the slot it sits in comes round. The cost of a tick therefore depends on
+ * the peers due in it, not on the number of peers.
+ *
+ * @author hexbioc
+ */
+public class LivenessMonitor {
+
+    private static final long TICK_MILLIS = 500;
+    //Power of two; one turn of the wheel covers 64 seconds
+    private static final int WHEEL_SIZE = 128;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    //A connected peer heartbeats every 5 seconds; three missed beats and it is considered dead
+    static final long HEARTBEAT_TIMEOUT_MILLIS = 15000;
+    //Longer than the longest reconnection backoff of a peer
+    static final long RECONNECT_GRACE_MILLIS = 60000;
+
+    private static final class Liveness {
+
+        final String peer;
+        //Updated on every message without taking the lock
+        volatile long lastSeen;
+        /*GUARDED BY THIS*/
+        //The open session of the peer; null once the connection is gone
+        PeerSession session;
+        long disconnectedAt;
+        boolean evicted;
+        /*OWNED BY THE WHEEL THREAD*/
+        boolean scheduled;
+        int slot;
+        //Full turns of the wheel left before the entry is due
+        long rounds;
+
+        Liveness(String peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final SharedData sharedData;
+    private final ConcurrentHashMap<String, Liveness> peers;
+    //Entries handed to the wheel by other threads; placed in their slots on the next tick
+    private final Queue<Liveness> pending;
+    //Entries do not override equals, so each slot holds them by identity
+    private final List<Set<Liveness>> wheel;
+    private long tick;
+    private long startedAt;
+    private Thread ticker;
+    private volatile boolean running;
+
+    public LivenessMonitor(SharedData sharedData) {
+        this.sharedData = sharedData;
+        peers = new ConcurrentHashMap<>();
+        pending = new ConcurrentLinkedQueue<>();
+        wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new HashSet<>());
+        }
+        tick = 0;
+    }
+
+    public void start() {
+        running = true;
+        startedAt = now();
+        ticker = new Thread(this::turnWheel, "tracker-liveness");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (ticker != null) {
+            ticker.interrupt();
+        }
+    }
+
+    public void peerConnected(PeerSession session) {
+        while (true) {
+            Liveness entry = peers.computeIfAbsent(session.getPeerInetAddress(), Liveness::new);
+            synchronized (entry) {
+                if (entry.evicted) {
+                    //Lost a race with the eviction of the peer's previous connection
+                    continue;
+                }
+                entry.session = session;
+                entry.lastSeen = now();
+            }
+            pending.add(entry);
+            return;
+        }
+    }
+
+    //Called for every message received from the peer
+    public void peerSeen(String peer) {
+        Liveness entry = peers.get(peer);
+        if (entry != null) {
+            entry.lastSeen = now();
+        }
+    }
+
+    /**
+     * Called when a session ends. A peer that departed is evicted on the
+     * next tick; otherwise it is given the grace period to come back.
+     */
+    public void peerDisconnected(PeerSession session, boolean departed) {
+        Liveness entry = peers.get(session.getPeerInetAddress());
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.session != session) {
+                //Already replaced by a newer connection, or timed out
+                return;
+            }
+            entry.session = null;
+            entry.disconnectedAt = departed ? now() - RECONNECT_GRACE_MILLIS : now();
+        }
+        pending.add(entry);
+    }
+
+    //A peer known from the persisted index; evicted unless it reconnects within the grace period
+    public void peerRestored(String peer) {
+        Liveness entry = new Liveness(peer);
+        entry.disconnectedAt = now();
+        if (peers.putIfAbsent(peer, entry) == null) {
+            pending.add(entry);
+        }
+    }
+
+    private void turnWheel() {
+        while (running) {
+            try {
+                long sleep = startedAt + (tick + 1) * TICK_MILLIS - now();
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            tick++;
+            long time = now();
+
+            //Changed entries are looked at on the next tick, wherever they were due before
+            Liveness entry;
+            while ((entry = pending.poll()) != null) {
+                if (entry.evicted) {
+                    continue;
+                }
+                if (entry.scheduled) {
+                    wheel.get(entry.slot).remove(entry);
+                }
+                entry.scheduled = true;
+                schedule(entry, time);
+            }
+
+            //Take the slot out first; entries a full turn away go back into a fresh one
+            int slot = (int) (tick & WHEEL_MASK);
+            Set<Liveness> due = wheel.get(slot);
+            wheel.set(slot, new HashSet<>());
+            ArrayList<PeerSession> timedOut = new ArrayList<>();
+            ArrayList<String> evicted = new ArrayList<>();
+            for (Liveness candidate : due) {
+                if (candidate.rounds > 0) {
+                    candidate.rounds--;
+                    wheel.get(slot).add(candidate);
+                } else {
+                    expire(candidate, time, timedOut, evicted);
+                }
+            }
+
+            for (PeerSession session : timedOut) {
+                System.out.println("Peer " + session.getPeerInetAddress() + " missed its heartbeats; closing the connection");
+                sharedData.getMetrics().heartbeatTimedOut();
+                sharedData.unregisterSession(session, false);
+                session.disconnect();
+            }
+            if (!evicted.isEmpty()) {
+                sharedData.evictPeers(evicted);
+            }
+        }
+    }
+
+    //Evicts the entry if its deadline has passed, otherwise puts it in the slot of its deadline
+    private void expire(Liveness entry, long time, List<PeerSession> timedOut, List<String> evicted) {
+        synchronized (entry) {
+            if (entry.session != null) {
+                long deadline = entry.lastSeen + HEARTBEAT_TIMEOUT_MILLIS;
+                if (time < deadline) {
+                    schedule(entry, deadline);
+                    return;
+                }
+                timedOut.add(entry.session);
+                entry.session = null;
+            } else if (time < entry.disconnectedAt + RECONNECT_GRACE_MILLIS) {
+                schedule(entry, entry.disconnectedAt + RECONNECT_GRACE_MILLIS);
+                return;
+            }
+            entry.evicted = true;
+            entry.scheduled = false;
+            peers.remove(entry.peer, entry);
+            evicted.add(entry.peer);
+        }
+    }
+
+    private void schedule(Liveness entry, long deadline) {
+        long ticks = Math.max(1, (deadline - startedAt + TICK_MILLIS - 1) / TICK_MILLIS - tick);
+        entry.rounds = (ticks - 1) / WHEEL_SIZE;
+        entry.slot = (int) ((tick + ticks) & WHEEL_MASK);
+        wheel.get(entry.slot).add(entry);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,44 @@
+package backend.tracker;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the tracker's metrics as plain text at http://localhost:PORT/metrics.
+ * Only bound to the loopback interface; the metrics are rendered on demand
+ * by a single thread, so scraping never competes with the peers.
+ *
+ * @author hexbioc
+ */
+public class MetricsEndpoint {
+
+    private final HttpServer server;
+
+    public MetricsEndpoint(int port, final SharedData sharedData) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte body[] = sharedData.getMetrics().render(sharedData).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,448 @@
+package backend.tracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state of a single peer connection served by a {@link NioTracker} event
+ * loop. This is the non-blocking counterpart of {@link TrackerThread}: the
+ * same command bytes are exchanged, but instead of blocking on the socket the
+ * session parses whatever has arrived and remembers where it stopped.
+ *
+ * @author hexbioc
+ */
+class NioPeerSession implements PeerSession {
+
+    /*TRACKER COMMAND LIST*/
+    private static final byte GET_FILE_LIST = 1;
+    private static final byte COMMUNICATE_WITH_PEER = 3;
+    private static final byte FILE_REQUEST_REPLY = 4;
+    private static final byte FILES_BUNDLED_REPLY = 5;
+    private static final byte COMMUNICATE_BUNDLE = 6;
+    /*PEER REPLIES TO TRACKER*/
+    private static final byte PEER_REPLY_IDLE = 0;
+    private static final byte PEER_REPLY_FILE_LIST_UPDATED = 1;
+    private static final byte PEER_REPLY_FILE_REQUIRED = 2;
+    private static final byte PEER_REPLY_TERMINATE = 3;
+    private static final byte PEER_REPLY_UPLOAD_COMPLETE = 4;
+    private static final byte PEER_REPLY_FILES_REQUIRED = 5;
+    /*TRACKER REPLIES*/
+    private static final byte FILE_AVAILABLE = 1;
+    private static final byte FILE_NOT_AVAILABLE = 0;
+    /*FILE LIST TYPES*/
+    private static final byte LIST_FULL = 0;
+    /*FILE LIST ENTRIES*/
+    private static final byte CHANGE_ADD = 0;
+    private static final byte CHANGE_REMOVE = 1;
+    private static final byte CHANGE_SIZE = 2;
+    //Type, epoch, base version, new version and entry count
+    private static final int LIST_HEADER_BYTES = 1 + 8 + 8 + 8 + 4;
+
+    /*SESSION STATES*/
+    //Waiting for the next status message pushed by the peer
+    private static final int STATE_AWAITING_STATUS = 0;
+    //Waiting for the header of a file list
+    private static final int STATE_RECEIVING_LIST_HEADER = 1;
+    //Waiting for the remaining entries of a file list
+    private static final int STATE_RECEIVING_FILE_LIST = 2;
+    private static final int STATE_CLOSED = 3;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private final SharedData sharedData;
+    private final NioTracker.EventLoop eventLoop;
+    private final int sessionNumber;
+    private final String peerInetAddress;
+    private final ArrayDeque<ByteBuffer> outbound;
+    private ByteBuffer inbound;
+    private SelectionKey key;
+    private int state;
+    //File list being received: its version, whether it is applied and how many entries remain
+    private long listEpoch;
+    private long listVersion;
+    private boolean listAccepted;
+    private int listEntriesLeft;
+    //Time spent applying the file list being received, for the metrics
+    private long listNanos;
+
+    NioPeerSession(SocketChannel channel, SharedData sharedData, NioTracker.EventLoop eventLoop, int sessionNumber) {
+        this.channel = channel;
+        this.sharedData = sharedData;
+        this.eventLoop = eventLoop;
+        this.sessionNumber = sessionNumber;
+
+        peerInetAddress = channel.socket().getInetAddress().getHostAddress();
+        outbound = new ArrayDeque<>();
+        inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        state = STATE_AWAITING_STATUS;
+    }
+
+    @Override
+    public String getPeerInetAddress() {
+        return peerInetAddress;
+    }
+
+    void start(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            sharedData.registerSession(this);
+            requestFileList();
+        } catch (IOException ex) {
+            Logger.getLogger(NioPeerSession.class.getName()).log(Level.SEVERE, null, ex);
+            close();
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                int read = channel.read(inbound);
+                if (read < 0) {
+                    System.out.println("Peer " + peerInetAddress + " [PEER " + sessionNumber + "] closed the connection");
+                    close();
+                    return;
+                }
+                sharedData.peerSeen(peerInetAddress);
+                sharedData.getMetrics().bytesReceived(read);
+                inbound.flip();
+                process();
+                inbound.compact();
+                if (!inbound.hasRemaining()) {
+                    //A single message does not fit; grow the buffer
+                    ByteBuffer larger = ByteBuffer.allocate(inbound.capacity() * 2);
+                    inbound.flip();
+                    larger.put(inbound);
+                    inbound = larger;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(NioPeerSession.class.getName()).log(Level.SEVERE, null, ex);
+            close();
+        }
+    }
+
+    @Override
+    public void communicateWithPeer(final TransferRequest request) {
+        //Called from the thread that placed the request; hop onto this session's loop
+        eventLoop.execute(() -> {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                if (request.isBundle()) {
+                    out.write(COMMUNICATE_BUNDLE);
+                    out.writeUTF(request.getAskingPeer());
+                    out.writeLong(request.getRequestId());
+                    out.writeInt(request.getBundledFiles().size());
+                    for (String fileName : request.getBundledFiles()) {
+                        out.writeUTF(fileName);
+                    }
+                } else {
+                    out.write(COMMUNICATE_WITH_PEER);
+                    out.writeUTF(request.getAskingPeer());
+                    out.writeUTF(request.getFileName());
+                    out.writeLong(request.getRequestId());
+                }
+                send(bytes.toByteArray());
+            } catch (IOException ex) {
+                Logger.getLogger(NioPeerSession.class.getName()).log(Level.SEVERE, null, ex);
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        eventLoop.execute(this::close);
+    }
+
+    //Consume every complete message in the inbound buffer
+    private void process() throws IOException {
+        boolean progress = true;
+        while (progress && state != STATE_CLOSED) {
+            switch (state) {
+                case STATE_RECEIVING_LIST_HEADER:
+                    progress = receiveFileListHeader();
+                    break;
+                case STATE_RECEIVING_FILE_LIST:
+                    progress = receiveFileListEntry();
+                    break;
+                default:
+                    progress = receiveStatus();
+            }
+        }
+    }
+
+    private void requestFileList() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(GET_FILE_LIST);
+        out.writeLong(sharedData.getFileListEpoch(peerInetAddress));
+        out.writeLong(sharedData.getFileListVersion(peerInetAddress));
+        send(bytes.toByteArray());
+    }
+
+    private boolean receiveFileListHeader() throws IOException {
+        if (inbound.remaining() < LIST_HEADER_BYTES) {
+            return false;
+        }
+        long startedAt = System.nanoTime();
+        boolean fullList = inbound.get() == LIST_FULL;
+        listEpoch = inbound.getLong();
+        long baseVersion = inbound.getLong();
+        listVersion = inbound.getLong();
+        listEntriesLeft = inbound.getInt();
+        listAccepted = sharedData.startFileList(peerInetAddress, fullList, listEpoch, baseVersion);
+        state = STATE_RECEIVING_FILE_LIST;
+        listNanos = System.nanoTime() - startedAt;
+        return true;
+    }
+
+    private boolean receiveFileListEntry() throws IOException {
+        long startedAt = System.nanoTime();
+        if (listEntriesLeft == 0) {
+            if (listAccepted) {
+                sharedData.finishFileList(peerInetAddress, listEpoch, listVersion);
+            } else {
+                //Changes were made against a list the tracker does not have; ask again
+                requestFileList();
+            }
+            state = STATE_AWAITING_STATUS;
+            //Only the time spent applying the list; waiting for its entries to arrive is not counted
+            sharedData.getMetrics().commandHandled(PEER_REPLY_FILE_LIST_UPDATED, listNanos + System.nanoTime() - startedAt);
+            return true;
+        }
+        if (!inbound.hasRemaining()) {
+            return false;
+        }
+        int start = inbound.position();
+        byte change = inbound.get();
+        String fileName = readUTF(inbound);
+        if (fileName == null || (change != CHANGE_REMOVE && inbound.remaining() < Long.BYTES)) {
+            inbound.position(start);
+            return false;
+        }
+        long fileSize = (change == CHANGE_REMOVE) ? 0 : inbound.getLong();
+        listEntriesLeft--;
+        if (listAccepted) {
+            switch (change) {
+                case CHANGE_ADD:
+                    sharedData.addFileInfo(peerInetAddress, fileName, fileSize);
+                    break;
+                case CHANGE_REMOVE:
+                    sharedData.removeFileInfo(peerInetAddress, fileName);
+                    break;
+                case CHANGE_SIZE:
+                    sharedData.updateFileSize(peerInetAddress, fileName, fileSize);
+                    break;
+            }
+        }
+        listNanos += System.nanoTime() - startedAt;
+        return true;
+    }
+
+    private boolean receiveStatus() throws IOException {
+        if (!inbound.hasRemaining()) {
+            return false;
+        }
+        int start = inbound.position();
+        long startedAt = System.nanoTime();
+        byte reply = inbound.get();
+        switch (reply) {
+
+            case PEER_REPLY_IDLE:
+                break;
+
+            case PEER_REPLY_FILE_LIST_UPDATED:
+                state = STATE_RECEIVING_LIST_HEADER;
+                break;
+
+            case PEER_REPLY_FILE_REQUIRED:
+                String requiredFile = readUTF(inbound);
+                if (requiredFile == null) {
+                    inbound.position(start);
+                    return false;
+                }
+                requestFile(requiredFile);
+                break;
+
+            case PEER_REPLY_FILES_REQUIRED:
+                List<String> requiredFiles = readFileNames();
+                if (requiredFiles == null) {
+                    inbound.position(start);
+                    return false;
+                }
+                requestFiles(requiredFiles);
+                break;
+
+            case PEER_REPLY_UPLOAD_COMPLETE:
+                if (inbound.remaining() < 8) {
+                    inbound.position(start);
+                    return false;
+                }
+                sharedData.uploadComplete(peerInetAddress, inbound.getLong());
+                break;
+
+            case PEER_REPLY_TERMINATE:
+                close(true);
+                break;
+
+            default:
+                Logger.getLogger(NioPeerSession.class.getName()).log(Level.WARNING, "Unknown reply {0} from peer {1}", new Object[]{reply, peerInetAddress});
+        }
+        if (reply != PEER_REPLY_FILE_LIST_UPDATED) {
+            //A file list is counted once all of its entries have been applied
+            sharedData.getMetrics().commandHandled(reply, System.nanoTime() - startedAt);
+        }
+        return true;
+    }
+
+    private void requestFile(String requiredFile) throws IOException {
+        TransferRequest request = sharedData.createFileRequest(requiredFile, peerInetAddress);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(FILE_REQUEST_REPLY);
+        out.writeUTF(requiredFile);
+        if (request != null) {
+            out.write(FILE_AVAILABLE);
+            out.writeInt(request.getSourceCount());
+            out.writeLong(sharedData.getFileSize(requiredFile));
+            send(bytes.toByteArray());
+            sharedData.dispatchFileRequest(request);
+        } else {
+            out.write(FILE_NOT_AVAILABLE);
+            send(bytes.toByteArray());
+        }
+    }
+
+    //The count and names of a batch of files; null if the message is not complete yet
+    private List<String> readFileNames() throws IOException {
+        if (inbound.remaining() < 4) {
+            return null;
+        }
+        int fileCount = inbound.getInt();
+        ArrayList<String> fileNames = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = readUTF(inbound);
+            if (fileName == null) {
+                return null;
+            }
+            fileNames.add(fileName);
+        }
+        return fileNames;
+    }
+
+    //Small files of the batch are sent in bundles, the others each on their own as if asked for singly
+    private void requestFiles(List<String> requiredFiles) throws IOException {
+        ArrayList<String> small = new ArrayList<>();
+        for (String requiredFile : requiredFiles) {
+            if (sharedData.isBundled(requiredFile)) {
+                small.add(requiredFile);
+            } else {
+                requestFile(requiredFile);
+            }
+        }
+        List<TransferRequest> bundles = sharedData.createBundleRequests(small, peerInetAddress);
+        HashSet<String> bundled = new HashSet<>();
+        for (TransferRequest bundle : bundles) {
+            bundled.addAll(bundle.getBundledFiles());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(FILES_BUNDLED_REPLY);
+        out.writeInt(small.size());
+        for (String requiredFile : small) {
+            out.writeUTF(requiredFile);
+            if (bundled.contains(requiredFile)) {
+                out.write(FILE_AVAILABLE);
+                out.writeLong(sharedData.getFileSize(requiredFile));
+            } else {
+                out.write(FILE_NOT_AVAILABLE);
+            }
+        }
+        send(bytes.toByteArray());
+        for (TransferRequest bundle : bundles) {
+            sharedData.dispatchFileRequest(bundle);
+        }
+    }
+
+    private void send(byte command) throws IOException {
+        send(new byte[]{command});
+    }
+
+    private void send(byte message[]) throws IOException {
+        outbound.add(ByteBuffer.wrap(message));
+        flush();
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer head;
+        while ((head = outbound.peek()) != null) {
+            sharedData.getMetrics().bytesSent(channel.write(head));
+            if (head.hasRemaining()) {
+                //Socket buffer is full; continue when the channel becomes writable
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void close() {
+        close(false);
+    }
+
+    //A departed peer is evicted from the file index at once, a vanished one after a grace period
+    private void close(boolean departed) {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_CLOSED;
+        sharedData.unregisterSession(this, departed);
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(NioPeerSession.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Decodes a string written by {@link DataOutputStream#writeUTF(String)}.
+     * Returns null and leaves the buffer untouched if it is not complete yet.
+     */
+    static String readUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort(buffer.position()) & 0xFFFF;
+        if (buffer.remaining() < 2 + length) {
+            return null;
+        }
+        byte encoded[] = new byte[2 + length];
+        buffer.get(encoded);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+}
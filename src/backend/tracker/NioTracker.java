@@ -0,0 +1,142 @@
+package backend.tracker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector based tracker engine. All peer connections are served by a small
+ * fixed set of event loop threads instead of a thread per peer; the wire
+ * protocol is the same one spoken by {@link TrackerThread}.
+ *
+ * @author hexbioc
+ */
+public class NioTracker {
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final SharedData sharedData;
+    private final EventLoop eventLoops[];
+    //An integer value to name different sessions
+    private int sessionNumber;
+    //A flag to denote that the tracker is terminating so that the channels are closed
+    private volatile boolean terminateFlag;
+
+    public NioTracker(int port, SharedData sharedData, int eventLoopCount) throws IOException {
+        this.sharedData = sharedData;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+        sessionNumber = 0;
+        terminateFlag = false;
+    }
+
+    public void begin() {
+
+        for (EventLoop loop : eventLoops) {
+            new Thread(loop, "tracker-event-loop-" + loop.loopNumber).start();
+        }
+
+        try {
+            while (!terminateFlag) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel peer;
+                while ((peer = serverChannel.accept()) != null) {
+                    sharedData.getMetrics().connectionAccepted();
+                    System.out.println("Peer connected from " + peer.socket().getInetAddress().getHostAddress() + "\t[PEER " + ++sessionNumber + "]");
+                    //Hand the connection over to the event loops in a round robin fashion
+                    eventLoops[sessionNumber % eventLoops.length].register(peer, sessionNumber);
+                }
+            }
+            //Terminate flag value has changed; close the channel and stop the loops
+            serverChannel.close();
+            acceptSelector.close();
+            for (EventLoop loop : eventLoops) {
+                loop.selector.wakeup();
+            }
+
+            System.out.println("ServerSocketChannel closed. " + sessionNumber + " peers are now literally trackerless.");
+        } catch (IOException ex) {
+            Logger.getLogger(NioTracker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public void terminate() {
+        terminateFlag = true;
+        acceptSelector.wakeup();
+    }
+
+    /**
+     * A single selector thread multiplexing many peer sessions.
+     */
+    final class EventLoop implements Runnable {
+
+        private final int loopNumber;
+        private final Selector selector;
+        //Work handed to this loop by other threads (new connections, pushed requests)
+        private final Queue<Runnable> tasks;
+
+        EventLoop(int loopNumber) throws IOException {
+            this.loopNumber = loopNumber;
+            selector = Selector.open();
+            tasks = new ConcurrentLinkedQueue<>();
+        }
+
+        void register(SocketChannel channel, int sessionNumber) throws IOException {
+            channel.configureBlocking(false);
+            final NioPeerSession session = new NioPeerSession(channel, sharedData, this, sessionNumber);
+            execute(() -> session.start(selector));
+        }
+
+        //Run the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!terminateFlag) {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioPeerSession) key.attachment()).handle(key);
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    ((NioPeerSession) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(NioTracker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package backend.tracker;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns peer addresses as small integer ids so that ownership sets can be
+ * stored as primitive int arrays instead of sets of strings. Ids are never
+ * reused; lookups in both directions take no locks.
+ *
+ * @author hexbioc
+ */
+public class PeerIdTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    //Address of every id handed out; replaced by a larger copy when full
+    private volatile String addresses[];
+    private int nextId;
+    private final Object growLock;
+
+    public PeerIdTable() {
+        ids = new ConcurrentHashMap<>();
+        addresses = new String[INITIAL_CAPACITY];
+        nextId = 0;
+        growLock = new Object();
+    }
+
+    //Returns the id of the address, assigning a new one the first time it is seen
+    public int intern(String peerInetAddress) {
+        Integer id = ids.get(peerInetAddress);
+        if (id != null) {
+            return id;
+        }
+        synchronized (growLock) {
+            id = ids.get(peerInetAddress);
+            if (id != null) {
+                return id;
+            }
+            int newId = nextId++;
+            String table[] = addresses;
+            if (newId == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            table[newId] = peerInetAddress;
+            //Publish the address before the id becomes visible to readers
+            addresses = table;
+            ids.put(peerInetAddress, newId);
+            return newId;
+        }
+    }
+
+    //Returns the id of a known address or -1
+    public int lookup(String peerInetAddress) {
+        Integer id = ids.get(peerInetAddress);
+        return (id == null) ? -1 : id;
+    }
+
+    public String getAddress(int id) {
+        return addresses[id];
+    }
+
+    //Number of ids handed out; every id below it has an address
+    public int size() {
+        synchronized (growLock) {
+            return nextId;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package backend.tracker;
+
+/**
+ * A live connection between the tracker and a peer, regardless of the engine
+ * (thread per peer or event loop) serving it. Sessions register themselves
+ * with {@link SharedData} so that work can be pushed to them instead of
+ * being discovered by polling.
+ *
+ * @author hexbioc
+ */
+public interface PeerSession {
+
+    String getPeerInetAddress();
+
+    /**
+     * Asks the connected peer, an owner of the requested file, to communicate
+     * with the asking peer. Must not block on other sessions.
+     */
+    void communicateWithPeer(TransferRequest request);
+
+    /**
+     * Closes the connection from the tracker's side, for a peer that has
+     * stopped sending heartbeats. Must not block on other sessions.
+     */
+    void disconnect();
+}
@@ -5,8 +5,20 @@
  */
 package backend.tracker;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -14,105 +26,618 @@ import java.util.HashSet;
  */
 public class SharedData {
 
-    private final HashMap<String, HashSet<String>> fileOwnershipData;
-    private final HashMap<String, Long> fileSizeData;
-    private String requestedFile;
-    private String askingPeer;
-    private boolean requestAvailable;
-    private int peerCount;
-    private final Object writeLock;
-    private final Object counterLock;
+    //Requests a source is handed at once; peers run them in parallel on their upload slots
+    private static final int UPLOADS_PER_SOURCE = Integer.getInteger("tracker.source.uploads", 4);
+    //Files asked for in a batch are bundled up to this size; one piece on the peers
+    private static final long BUNDLE_MAX_FILE_SIZE = Long.getLong("tracker.bundle.max.file", 1024 * 1024);
+    //Files in a bundle at most; a larger share of a batch is split over several bundles from the same source
+    private static final int BUNDLE_MAX_FILES = Integer.getInteger("tracker.bundle.max.files", 1000);
+
+    //Epoch and version of the file list last applied for a peer
+    private static final class FileListVersion {
+
+        final long epoch;
+        final long version;
+
+        FileListVersion(long epoch, long version) {
+            this.epoch = epoch;
+            this.version = version;
+        }
+    }
+
+    //Owners and size of every file; read without locks
+    private final FileOwnershipIndex fileOwnershipData;
+    //Compact integer ids of the peer addresses stored in the index
+    private final PeerIdTable peerIds;
+    //File list version of every peer the index holds files for, keyed by IP
+    private final ConcurrentHashMap<String, FileListVersion> fileListVersions;
+    //Connected peers keyed by IP; requests are routed to them
+    private final ConcurrentHashMap<String, PeerSession> sessions;
+    //Requests that still have sources uploading or waiting to upload, keyed by request id
+    private final ConcurrentHashMap<Long, TransferRequest> activeRequests;
+    //The requests each source is currently uploading for; guarded by requestLock
+    private final HashMap<String, ArrayList<TransferRequest>> busySources;
+    //Requests waiting for a busy source, in arrival order; guarded by requestLock
+    private final HashMap<String, ArrayDeque<TransferRequest>> sourceQueues;
+    private final AtomicLong requestCounter;
+    //Locks rather than monitors: a virtual thread waiting for a monitor pins its carrier
+    private final ReentrantLock requestLock;
+    //Orders evictions against peers reconnecting, so a fresh session never loses its files
+    private final ReentrantLock evictionLock;
+    //Where index changes are persisted; null until the persisted state has been restored
+    private volatile TrackerStore store;
+    //Evicts peers that went silent or away; null when liveness is not tracked
+    private volatile LivenessMonitor liveness;
+    //What the tracker is doing; recorded by the engines as well
+    private final TrackerMetrics metrics;
 
     public SharedData() {
 
-        fileOwnershipData = new HashMap<>();
-        fileSizeData = new HashMap<>();
-        requestedFile = "";
-        askingPeer = "";
-        requestAvailable = false;
-        peerCount = 0;
+        fileOwnershipData = new FileOwnershipIndex();
+        peerIds = new PeerIdTable();
+        fileListVersions = new ConcurrentHashMap<>();
+        sessions = new ConcurrentHashMap<>();
+        activeRequests = new ConcurrentHashMap<>();
+        busySources = new HashMap<>();
+        sourceQueues = new HashMap<>();
+        requestCounter = new AtomicLong();
+
+        requestLock = new ReentrantLock();
+        evictionLock = new ReentrantLock();
+        metrics = new TrackerMetrics();
+    }
 
-        writeLock = new Object();
-        counterLock = new Object();
+    public TrackerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void registerSession(PeerSession session) {
+        long waitStartedAt = System.nanoTime();
+        evictionLock.lock();
+        try {
+            metrics.lockAcquired(waitStartedAt);
+            sessions.put(session.getPeerInetAddress(), session);
+        } finally {
+            evictionLock.unlock();
+        }
+        LivenessMonitor monitor = liveness;
+        if (monitor != null) {
+            monitor.peerConnected(session);
+        }
+    }
+
+    public void unregisterSession(PeerSession session) {
+        unregisterSession(session, false);
+    }
+
+    /**
+     * Called when a session ends. A peer that departed is evicted from the
+     * index right away; one that lost its connection may come back within
+     * the grace period of the liveness monitor.
+     */
+    public void unregisterSession(PeerSession session, boolean departed) {
+        //Only remove the entry if a newer session from the same IP has not replaced it
+        if (sessions.remove(session.getPeerInetAddress(), session)) {
+            //The peer will not report the end of its uploads any more
+            releaseSource(session.getPeerInetAddress());
+        }
+        LivenessMonitor monitor = liveness;
+        if (monitor != null) {
+            monitor.peerDisconnected(session, departed);
+        }
+    }
+
+    //Called for every message received from the peer; serves as its heartbeat
+    public void peerSeen(String peer) {
+        LivenessMonitor monitor = liveness;
+        if (monitor != null) {
+            monitor.peerSeen(peer);
+        }
+    }
+
+    public void setStore(TrackerStore store) {
+        this.store = store;
+    }
+
+    public void setLivenessMonitor(LivenessMonitor liveness) {
+        this.liveness = liveness;
+    }
+
+    //Every peer the index may hold files for
+    public List<String> getKnownPeers() {
+        int peerCount = peerIds.size();
+        ArrayList<String> peers = new ArrayList<>(peerCount);
+        for (int id = 0; id < peerCount; id++) {
+            peers.add(peerIds.getAddress(id));
+        }
+        return peers;
     }
 
     public boolean addFileInfo(String fileOwner, String fileName, long fileSize) {
 
-        //Add a lock so that no two threads write at the same time
-        synchronized (writeLock) {
-            if (!fileOwnershipData.containsKey(fileName)) {
+        //The index is safe for concurrent writers; no lock needed
+        boolean added = fileOwnershipData.addOwner(fileName, peerIds.intern(fileOwner), fileSize);
+        TrackerStore persistence = store;
+        if (added && persistence != null) {
+            persistence.logAdd(fileOwner, fileName, fileSize);
+        }
+        return added;
+    }
+
+    public boolean removeFileInfo(String fileOwner, String fileName) {
+        int peerId = peerIds.lookup(fileOwner);
+        boolean removed = peerId >= 0 && fileOwnershipData.removeOwner(fileName, peerId);
+        TrackerStore persistence = store;
+        if (removed && persistence != null) {
+            persistence.logRemove(fileOwner, fileName);
+        }
+        return removed;
+    }
+
+    //Only an owner of the file can change its size; anyone else is ignored
+    public boolean updateFileSize(String fileOwner, String fileName, long fileSize) {
+        int peerId = peerIds.lookup(fileOwner);
+        if (peerId < 0 || !fileOwnershipData.isOwner(fileName, peerId)) {
+            return false;
+        }
+        fileOwnershipData.setFileSize(fileName, fileSize);
+        TrackerStore persistence = store;
+        if (persistence != null) {
+            persistence.logSize(fileOwner, fileName, fileSize);
+        }
+        return true;
+    }
+
+    //Forgets every file of the peer along with its file list version
+    public void removePeer(String peer) {
+        int peerId = peerIds.lookup(peer);
+        if (peerId >= 0) {
+            fileOwnershipData.removePeer(peerId);
+        }
+        fileListVersions.remove(peer);
+        TrackerStore persistence = store;
+        if (persistence != null) {
+            persistence.logPeerRemoved(peer);
+        }
+    }
 
-                //Create a new HashSet to store IPs of all owners of the required file
-                fileOwnershipData.put(fileName, new HashSet<>());
-                //Add the file size info
-                fileSizeData.put(fileName, fileSize);
+    /**
+     * Removes the peers from the owners of every file in a single pass over
+     * the index, skipping any that have reconnected in the meantime.
+     */
+    public void evictPeers(List<String> peers) {
+
+        long waitStartedAt = System.nanoTime();
+        evictionLock.lock();
+        try {
+            metrics.lockAcquired(waitStartedAt);
+            int ids[] = new int[peers.size()];
+            int idCount = 0;
+            int evicted = 0;
+            TrackerStore persistence = store;
+            for (String peer : peers) {
+                if (sessions.containsKey(peer)) {
+                    continue;
+                }
+                int peerId = peerIds.lookup(peer);
+                if (peerId >= 0) {
+                    ids[idCount++] = peerId;
+                }
+                fileListVersions.remove(peer);
+                if (persistence != null) {
+                    persistence.logPeerRemoved(peer);
+                }
+                evicted++;
+            }
+            if (evicted == 0) {
+                return;
             }
-            //Add the IP of the owner of the file
-            return ((HashSet<String>) fileOwnershipData.get(fileName)).add(fileOwner);
+            ids = Arrays.copyOf(ids, idCount);
+            Arrays.sort(ids);
+            int files = fileOwnershipData.removePeers(ids);
+            metrics.peersEvicted(evicted);
+            System.out.printf("Evicted %d peers; %d files changed owners%n", evicted, files);
+        } finally {
+            evictionLock.unlock();
         }
     }
-    
-    public HashSet<String> getFileOwners(String fileName) {
-        return fileOwnershipData.get(fileName);
+
+    //Epoch of the peer's file list the index is up to date with; 0 if unknown
+    public long getFileListEpoch(String peer) {
+        FileListVersion known = fileListVersions.get(peer);
+        return (known == null) ? 0 : known.epoch;
     }
-    
-    public int getPeerCount(String fileName) {
-        if (fileOwnershipData.containsKey(fileName)) {
-            int count;
-            count = ((HashSet<String>) fileOwnershipData.get(fileName)).size();
-            return count;
-        } else {
-            return 0;
+
+    //Version of the peer's file list the index is up to date with; -1 if unknown
+    public long getFileListVersion(String peer) {
+        FileListVersion known = fileListVersions.get(peer);
+        return (known == null) ? -1 : known.version;
+    }
+
+    /**
+     * Called before the entries of a file list from the peer are applied. A
+     * full list replaces everything known about the peer. Returns false for
+     * a delta that does not start at the version the index has; its entries
+     * must then be skipped and the list asked for again.
+     */
+    public boolean startFileList(String peer, boolean fullList, long epoch, long baseVersion) {
+        FileListVersion known = fileListVersions.get(peer);
+        if (fullList) {
+            if (known != null) {
+                removePeer(peer);
+            }
+            return true;
+        }
+        return known != null && known.epoch == epoch && known.version == baseVersion;
+    }
+
+    public void finishFileList(String peer, long epoch, long version) {
+        fileListVersions.put(peer, new FileListVersion(epoch, version));
+        TrackerStore persistence = store;
+        if (persistence != null) {
+            persistence.logListVersion(peer, epoch, version);
+        }
+    }
+
+    /**
+     * Writes the index and the file list versions for a TrackerStore
+     * snapshot. Returns the number of files written.
+     */
+    int writeSnapshot(final DataOutputStream out) throws IOException {
+
+        final int fileCount[] = new int[1];
+        try {
+            fileOwnershipData.forEach((fileName, owners) -> {
+                try {
+                    out.write(1);
+                    out.writeUTF(fileName);
+                    out.writeLong(fileOwnershipData.getFileSize(fileName));
+                    out.writeInt(owners.length);
+                    for (int owner : owners) {
+                        out.writeInt(owner);
+                    }
+                    fileCount[0]++;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        out.write(0);
+
+        //Written after the files so that it covers every id they refer to
+        int peerCount = peerIds.size();
+        out.writeInt(peerCount);
+        for (int id = 0; id < peerCount; id++) {
+            out.writeUTF(peerIds.getAddress(id));
+        }
+
+        ArrayList<Map.Entry<String, FileListVersion>> versions = new ArrayList<>(fileListVersions.entrySet());
+        out.writeInt(versions.size());
+        for (Map.Entry<String, FileListVersion> entry : versions) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().epoch);
+            out.writeLong(entry.getValue().version);
+        }
+        return fileCount[0];
+    }
+
+    //Counterpart of writeSnapshot; the shared data must still be empty
+    void readSnapshot(DataInputStream in) throws IOException {
+
+        while (in.read() == 1) {
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+            int owners[] = new int[in.readInt()];
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = in.readInt();
+            }
+            fileOwnershipData.restoreEntry(fileName, fileSize, owners);
+        }
+
+        //Interning the addresses in id order hands out the same ids again
+        int peerCount = in.readInt();
+        for (int id = 0; id < peerCount; id++) {
+            peerIds.intern(in.readUTF());
+        }
+
+        int versionCount = in.readInt();
+        for (int i = 0; i < versionCount; i++) {
+            fileListVersions.put(in.readUTF(), new FileListVersion(in.readLong(), in.readLong()));
+        }
+    }
+
+    public List<String> getFileOwners(String fileName) {
+        int owners[] = fileOwnershipData.getOwners(fileName);
+        ArrayList<String> addresses = new ArrayList<>(owners.length);
+        for (int owner : owners) {
+            addresses.add(peerIds.getAddress(owner));
         }
+        return addresses;
+    }
+
+    public int getPeerCount(String fileName) {
+        return fileOwnershipData.getOwnerCount(fileName);
     }
 
     public long getFileSize(String fileName) {
-        if (fileSizeData.containsKey(fileName)) {
-            return fileSizeData.get(fileName);
-        } else {
-            return 0;
+        return fileOwnershipData.getFileSize(fileName);
+    }
+
+    public int getFileCount() {
+        return fileOwnershipData.getFileCount();
+    }
+
+    /**
+     * Creates a request for the file served by every connected owner other
+     * than the asking peer. Returns null if there is no such owner. The
+     * request is not routed to its sources until {@link #dispatchFileRequest}
+     * is called, so that the asking peer can be answered first.
+     */
+    public TransferRequest createFileRequest(String fileName, String askingPeer) {
+
+        ArrayList<String> sources = new ArrayList<>();
+        for (int owner : fileOwnershipData.getOwners(fileName)) {
+            String address = peerIds.getAddress(owner);
+            if (!address.equals(askingPeer) && sessions.containsKey(address)) {
+                sources.add(address);
+            }
         }
+        if (sources.isEmpty()) {
+            metrics.requestUnavailable();
+            return null;
+        }
+        TransferRequest request = new TransferRequest(requestCounter.incrementAndGet(), fileName, askingPeer, sources);
+        activeRequests.put(request.getRequestId(), request);
+        metrics.requestCreated();
+        System.out.println("New file request set. Details:");
+        System.out.println(request);
+        return request;
     }
 
-    public boolean isNewRequestAvailable() {
-        return requestAvailable;
+    //Whether the file goes in a bundle when asked for in a batch; unknown files do, and are reported as not available there
+    public boolean isBundled(String fileName) {
+        //A shared directory, named with a trailing '/', is laid out by the receiver and cannot be bundled
+        return !fileName.endsWith("/") && fileOwnershipData.getFileSize(fileName) <= BUNDLE_MAX_FILE_SIZE;
     }
 
-    public boolean setFileRequest(String fileName, String peerInetAddress, int peerCount) {
+    /**
+     * Creates bundle requests for small files asked for in one batch,
+     * spreading the files over as few sources as possible: the connected
+     * owner holding most of the files not yet placed gets them all, then
+     * the one holding most of the rest, and so on. Each source gets its
+     * share in bundles of at most BUNDLE_MAX_FILES files. Files nobody else
+     * holds are left out. Like single requests, bundles are dispatched with
+     * {@link #dispatchFileRequest} once the asking peer has been answered.
+     */
+    public List<TransferRequest> createBundleRequests(List<String> fileNames, String askingPeer) {
 
-        //Method not yet synchronized; assumption that method won't be concurrently called
-        if (this.peerCount == 0) {
-            requestedFile = fileName;
-            askingPeer = peerInetAddress;
-            requestAvailable = true;
-            this.peerCount = peerCount;
-            System.out.println("New file request set. Details:");
-            System.out.println("File Name\t: " + requestedFile);
-            System.out.println("Asking Peer\t: " + askingPeer);
-            System.out.println("Peer Count\t:" + peerCount);
-            return true;
-        } else {
-            return false;
+        LinkedHashSet<String> left = new LinkedHashSet<>(fileNames);
+        //The files of the batch each connected source holds
+        HashMap<String, ArrayList<String>> filesBySource = new HashMap<>();
+        for (String fileName : left) {
+            for (int owner : fileOwnershipData.getOwners(fileName)) {
+                String address = peerIds.getAddress(owner);
+                if (!address.equals(askingPeer) && sessions.containsKey(address)) {
+                    filesBySource.computeIfAbsent(address, source -> new ArrayList<>()).add(fileName);
+                }
+            }
+        }
+        ArrayList<TransferRequest> requests = new ArrayList<>();
+        while (!left.isEmpty() && !filesBySource.isEmpty()) {
+            String best = null;
+            for (Map.Entry<String, ArrayList<String>> source : filesBySource.entrySet()) {
+                source.getValue().retainAll(left);
+                if (best == null || source.getValue().size() > filesBySource.get(best).size()) {
+                    best = source.getKey();
+                }
+            }
+            ArrayList<String> share = filesBySource.remove(best);
+            left.removeAll(share);
+            for (int start = 0; start < share.size(); start += BUNDLE_MAX_FILES) {
+                List<String> bundle = new ArrayList<>(share.subList(start, Math.min(share.size(), start + BUNDLE_MAX_FILES)));
+                TransferRequest request = new TransferRequest(requestCounter.incrementAndGet(), bundle, askingPeer, best);
+                activeRequests.put(request.getRequestId(), request);
+                metrics.requestCreated();
+                System.out.println("New file request set. Details:");
+                System.out.println(request);
+                requests.add(request);
+            }
+        }
+        //What is left has no source
+        for (int unavailable = 0; unavailable < left.size(); unavailable++) {
+            metrics.requestUnavailable();
+        }
+        return requests;
+    }
+
+    /**
+     * Routes the request to the sessions of its sources. A source already
+     * uploading for as many requests as it has upload slots gets it queued
+     * and is handed the request when it reports one of those as complete.
+     */
+    public void dispatchFileRequest(TransferRequest request) {
+
+        ArrayList<String> readySources = new ArrayList<>();
+        long waitStartedAt = System.nanoTime();
+        requestLock.lock();
+        try {
+            metrics.lockAcquired(waitStartedAt);
+            for (String source : request.getSources()) {
+                ArrayList<TransferRequest> uploading = busySources.get(source);
+                if (uploading != null && uploading.size() >= UPLOADS_PER_SOURCE) {
+                    ArrayDeque<TransferRequest> queue = sourceQueues.get(source);
+                    if (queue == null) {
+                        queue = new ArrayDeque<>();
+                        sourceQueues.put(source, queue);
+                    }
+                    queue.add(request);
+                } else {
+                    if (uploading == null) {
+                        uploading = new ArrayList<>(UPLOADS_PER_SOURCE);
+                        busySources.put(source, uploading);
+                    }
+                    uploading.add(request);
+                    readySources.add(source);
+                }
+            }
+        } finally {
+            requestLock.unlock();
+        }
+        //Push outside the lock; the sessions write to their own peers
+        for (String source : readySources) {
+            pushRequest(source, request);
         }
     }
 
-    public void decrementPeerCount() {
+    /**
+     * Called when a source reports that it has finished uploading its share
+     * of one of its requests. Hands the source the next queued request, if
+     * any.
+     */
+    public void uploadComplete(String source, long requestId) {
 
-        //Add a lock so that counter is decremented safely
-        synchronized (counterLock) {
-            --peerCount;
-            System.out.println("Counter decremented. New value: " + peerCount);
-            if (peerCount == 0) {
-                requestAvailable = false;
+        TransferRequest finished = null;
+        boolean completed;
+        TransferRequest next;
+        long waitStartedAt = System.nanoTime();
+        requestLock.lock();
+        try {
+            metrics.lockAcquired(waitStartedAt);
+            ArrayList<TransferRequest> uploading = busySources.get(source);
+            for (int i = 0; uploading != null && i < uploading.size(); i++) {
+                if (uploading.get(i).getRequestId() == requestId) {
+                    finished = uploading.remove(i);
+                    break;
+                }
+            }
+            if (finished == null) {
+                return;
             }
+            completed = finished.sourceFinished();
+            next = nextQueued(source, uploading);
+        } finally {
+            requestLock.unlock();
+        }
+        if (completed) {
+            requestCompleted(finished);
+        }
+        if (next != null) {
+            pushRequest(source, next);
         }
     }
 
-    public String getRequestedFile() {
-        return requestedFile;
+    /**
+     * Called when a source has gone. None of its uploads will be reported
+     * any more, so they are all taken as finished, and so is everything
+     * queued for it.
+     */
+    public void releaseSource(String source) {
+
+        ArrayList<TransferRequest> completed = new ArrayList<>();
+        long waitStartedAt = System.nanoTime();
+        requestLock.lock();
+        try {
+            metrics.lockAcquired(waitStartedAt);
+            ArrayList<TransferRequest> uploading = busySources.remove(source);
+            if (uploading != null) {
+                for (TransferRequest request : uploading) {
+                    if (request.sourceFinished()) {
+                        completed.add(request);
+                    }
+                }
+            }
+            ArrayDeque<TransferRequest> queue = sourceQueues.remove(source);
+            if (queue != null) {
+                for (TransferRequest request : queue) {
+                    if (request.sourceFinished()) {
+                        completed.add(request);
+                    }
+                }
+            }
+        } finally {
+            requestLock.unlock();
+        }
+        for (TransferRequest request : completed) {
+            requestCompleted(request);
+        }
+    }
+
+    //Every source of the request is done; called without the request lock, since printing may block
+    private void requestCompleted(TransferRequest request) {
+        activeRequests.remove(request.getRequestId());
+        metrics.requestCompleted(request);
+        System.out.println("File request completed: " + request);
+    }
+
+    //Moves the source's next queued request to its uploads, if it has a free slot; called with the request lock held
+    private TransferRequest nextQueued(String source, ArrayList<TransferRequest> uploading) {
+        ArrayDeque<TransferRequest> queue = sourceQueues.get(source);
+        TransferRequest next = (queue == null) ? null : queue.poll();
+        if (queue != null && queue.isEmpty()) {
+            sourceQueues.remove(source);
+        }
+        if (next == null) {
+            if (uploading.isEmpty()) {
+                busySources.remove(source);
+            }
+            return null;
+        }
+        uploading.add(next);
+        return next;
+    }
+
+    private void pushRequest(String source, TransferRequest request) {
+        PeerSession session = sessions.get(source);
+        if (session != null) {
+            session.communicateWithPeer(request);
+        } else {
+            //Source went away in the meantime; nothing will be uploaded by it
+            uploadComplete(source, request.getRequestId());
+        }
+    }
+
+    public int getActiveRequestCount() {
+        return activeRequests.size();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    //Number of (file, owner) pairs in the index; walks the whole index
+    public long getOwnershipCount() {
+        return fileOwnershipData.getOwnershipCount();
+    }
+
+    //Sources uploading for at least one request
+    public int getBusySourceCount() {
+        requestLock.lock();
+        try {
+            return busySources.size();
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    //Requests waiting for a busy source, counted once per source they wait for
+    public int getQueuedRequestCount() {
+        requestLock.lock();
+        try {
+            int queued = 0;
+            for (ArrayDeque<TransferRequest> queue : sourceQueues.values()) {
+                queued += queue.size();
+            }
+            return queued;
+        } finally {
+            requestLock.unlock();
+        }
     }
 
-    public String getAskingPeer() {
-        return askingPeer;
+    //Index changes not yet written to the change log
+    public int getPendingStoreRecords() {
+        TrackerStore persistence = store;
+        return (persistence == null) ? 0 : persistence.getPendingRecordCount();
     }
 }
@@ -1,39 +1,148 @@
 package backend.tracker;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Tracker {
 
-    //The port where the Tracker Server will be hosted
-    private static final int TRACKER_PORT = 8080;
+    //The default port where the Tracker Server will be hosted
+    public static final int TRACKER_PORT = 8080;
+    //Local metrics port of a tracker is its own port plus this; overridden by -Dtracker.metrics.port, 0 disables it
+    private static final int METRICS_PORT_OFFSET = 10;
 
-    //The tracker's ServerSocket
+    /*TRACKER MODES*/
+    //One blocking TrackerThread per connected peer
+    public static final String MODE_THREAD = "thread";
+    //All peers multiplexed over a few selector based event loops
+    public static final String MODE_NIO = "nio";
+    //One blocking TrackerThread per connected peer, each on a virtual thread (Java 21 and later)
+    public static final String MODE_VIRTUAL = "virtual";
+
+    //The mode the tracker was started in
+    private final String mode;
+    //The port this tracker listens on; every shard of a sharded tracker has its own
+    private final int port;
+    //The tracker's ServerSocket (thread mode)
     private ServerSocket serverSocket;
+    //Write the commands one peer's request pushes to the others, so that a slow peer holds up only its own (thread mode)
+    private ExecutorService pushers;
+    //The selector based engine (nio mode)
+    private NioTracker nioTracker;
     //Shared data for the threads containing common file information and requests
     private final SharedData sharedData;
+    //Keeps the file index on disk across restarts
+    private final TrackerStore store;
+    //Evicts the files of peers that went silent or away
+    private final LivenessMonitor liveness;
+    //Serves the tracker metrics over HTTP on the loopback interface
+    private MetricsEndpoint metricsEndpoint;
     //An integer value to name different threads
     private int threadNumber;
     //A flag to denote that the tracker is terminating so that the socket is closed
     private boolean terminateFlag;
 
     public Tracker() {
+        this(MODE_THREAD);
+    }
+
+    public Tracker(String mode) {
+        this(mode, defaultDataDirectory(TRACKER_PORT));
+    }
+
+    public Tracker(String mode, File dataDirectory) {
+        this(mode, dataDirectory, TRACKER_PORT);
+    }
+
+    /**
+     * A tracker listening on the given port. Several trackers, each on its
+     * own port and with its own data directory, can run side by side as the
+     * shards of one catalog; peers split the file names between them.
+     */
+    public Tracker(String mode, File dataDirectory, int port) {
+        this.mode = mode;
+        this.port = port;
+        store = new TrackerStore(dataDirectory);
+        SharedData restored = new SharedData();
+        boolean persisted = true;
         try {
-            serverSocket = new ServerSocket(TRACKER_PORT);
-            System.out.println("Tracker started; listening on port " + TRACKER_PORT);
+            //Restore the index before accepting peers so that they only have to revalidate
+            long started = System.nanoTime();
+            store.restore(restored);
+            System.out.printf("Restored %d files from %s in %d ms%n", restored.getFileCount(), dataDirectory, (System.nanoTime() - started) / 1000000);
         } catch (IOException ex) {
-            Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, ex);
+            Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, "Cannot restore the tracker index from " + dataDirectory, ex);
+            //Start empty rather than from part of the index; peers upload their lists again
+            restored = new SharedData();
+            try {
+                System.out.println("Tracker index that could not be restored moved to " + store.setAside());
+            } catch (IOException setAsideEx) {
+                Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, setAsideEx);
+                persisted = false;
+            }
+        }
+        sharedData = restored;
+        if (persisted) {
+            try {
+                store.start(sharedData);
+                sharedData.setStore(store);
+            } catch (IOException ex) {
+                Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (!store.isWriting()) {
+            System.out.println("Tracker index is not kept on disk; a restart starts empty");
         }
-        sharedData = new SharedData();
+        liveness = new LivenessMonitor(sharedData);
         threadNumber = 0;
         terminateFlag = false;
+
+        //Restored peers that do not reconnect within the grace period lose their files
+        for (String peer : sharedData.getKnownPeers()) {
+            liveness.peerRestored(peer);
+        }
+        sharedData.setLivenessMonitor(liveness);
+        liveness.start();
+
+        int metricsPort = Integer.getInteger("tracker.metrics.port", port + METRICS_PORT_OFFSET);
+        if (metricsPort > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(metricsPort, sharedData);
+                metricsEndpoint.start();
+                System.out.println("Metrics available at http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+            } catch (IOException ex) {
+                Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        try {
+            if (MODE_NIO.equals(mode)) {
+                nioTracker = new NioTracker(port, sharedData, Runtime.getRuntime().availableProcessors());
+            } else {
+                if (MODE_VIRTUAL.equals(mode) && !WorkerThreads.isVirtualAvailable()) {
+                    System.out.println("Virtual threads need Java 21 or later; using a platform thread per peer");
+                }
+                serverSocket = new ServerSocket(port);
+                pushers = Executors.newCachedThreadPool(WorkerThreads.factory("tracker-push", MODE_VIRTUAL.equals(mode)));
+            }
+            System.out.println("Tracker started in " + mode + " mode; listening on port " + port);
+        } catch (IOException ex) {
+            Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
     public void begin() {
 
+        if (MODE_NIO.equals(mode)) {
+            nioTracker.begin();
+            return;
+        }
+
         Socket peer = null;
 
         try {
@@ -41,9 +150,11 @@ public class Tracker {
 
                 //Accept a new connection
                 peer = serverSocket.accept();
+                sharedData.getMetrics().connectionAccepted();
                 System.out.println("Peer connected from " + peer.getInetAddress().getHostAddress() + "\t[PEER " + ++threadNumber + "]");
                 //Pass it on to a new thread
-                new Thread(new TrackerThread(peer, sharedData, threadNumber)).start();
+                WorkerThreads.newThread("tracker-peer-" + threadNumber, new TrackerThread(peer, sharedData, threadNumber, pushers),
+                        MODE_VIRTUAL.equals(mode)).start();
             }
             //Terminate flag value has changed; close socket
             serverSocket.close();
@@ -56,9 +167,42 @@ public class Tracker {
     
     public void terminate() {
         terminateFlag = true;
+        //Peers dropped by the shutdown keep their files for the next start
+        liveness.stop();
+        if (store.isWriting()) {
+            try {
+                //Leave a compact snapshot behind so that the next start replays nothing
+                store.snapshot(sharedData);
+            } catch (IOException ex) {
+                Logger.getLogger(Tracker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        store.close();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (nioTracker != null) {
+            nioTracker.terminate();
+        }
+        if (pushers != null) {
+            pushers.shutdown();
+        }
+    }
+
+    //Shards on one machine must not share their state, so each port gets its own directory
+    private static File defaultDataDirectory(int port) {
+        String name = (port == TRACKER_PORT) ? "tracker" : "tracker-" + port;
+        return new File(System.getProperty("user.home"), ".filetransfer" + File.separator + name);
     }
 
     public static void main(String[] args) {
-        new Tracker().begin();
+        //The first argument selects the tracker mode; defaults to a thread per peer
+        String mode = args.length > 0 ? args[0] : MODE_THREAD;
+        //The third argument selects the port, so that several shards can run on one machine
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : TRACKER_PORT;
+        //The second argument overrides where the tracker keeps its state; "-" keeps the default
+        File dataDirectory = (args.length > 1 && !"-".equals(args[1])) ? new File(args[1]) : defaultDataDirectory(port);
+        Tracker tracker = new Tracker(mode, dataDirectory, port);
+        tracker.begin();
     }
 }
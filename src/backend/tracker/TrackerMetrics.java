@@ -0,0 +1,243 @@
+package backend.tracker;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms describing what the tracker is doing.
+ * Everything recorded on the hot paths is a LongAdder increment or a
+ * histogram bucket increment, so the engines and SharedData can record
+ * unconditionally. Gauges such as the number of connected peers are not
+ * tracked at all; they are read from SharedData when the metrics are
+ * rendered. Served as text by {@link MetricsEndpoint}.
+ *
+ * @author hexbioc
+ */
+public class TrackerMetrics {
+
+    //Status messages pushed by peers, indexed by their command byte
+    private static final String COMMAND_NAMES[] = {"idle", "file_list", "file_required", "terminate", "upload_complete", "files_required"};
+
+    private final long startedAt;
+    private final LongAdder commands[];
+    private final LatencyHistogram commandLatency[];
+    private final LongAdder unknownCommands;
+    private final LongAdder connectionsAccepted;
+    private final LongAdder controlBytesIn;
+    private final LongAdder controlBytesOut;
+    private final LongAdder requestsCreated;
+    private final LongAdder requestsUnavailable;
+    private final LongAdder requestsCompleted;
+    private final LatencyHistogram requestDuration;
+    private final LongAdder peersEvicted;
+    private final LongAdder heartbeatTimeouts;
+    //Time spent waiting to enter the request and eviction locks
+    private final LatencyHistogram lockWait;
+
+    public TrackerMetrics() {
+        startedAt = System.nanoTime();
+        commands = new LongAdder[COMMAND_NAMES.length];
+        commandLatency = new LatencyHistogram[COMMAND_NAMES.length];
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            commands[i] = new LongAdder();
+            commandLatency[i] = new LatencyHistogram();
+        }
+        unknownCommands = new LongAdder();
+        connectionsAccepted = new LongAdder();
+        controlBytesIn = new LongAdder();
+        controlBytesOut = new LongAdder();
+        requestsCreated = new LongAdder();
+        requestsUnavailable = new LongAdder();
+        requestsCompleted = new LongAdder();
+        requestDuration = new LatencyHistogram();
+        peersEvicted = new LongAdder();
+        heartbeatTimeouts = new LongAdder();
+        lockWait = new LatencyHistogram();
+    }
+
+    //A status message from a peer was handled in the given time
+    public void commandHandled(int command, long nanos) {
+        if (command >= 0 && command < COMMAND_NAMES.length) {
+            commands[command].increment();
+            commandLatency[command].record(nanos);
+        } else {
+            unknownCommands.increment();
+        }
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    public void bytesReceived(long bytes) {
+        controlBytesIn.add(bytes);
+    }
+
+    public void bytesSent(long bytes) {
+        controlBytesOut.add(bytes);
+    }
+
+    public void requestCreated() {
+        requestsCreated.increment();
+    }
+
+    public void requestUnavailable() {
+        requestsUnavailable.increment();
+    }
+
+    public void requestCompleted(TransferRequest request) {
+        requestsCompleted.increment();
+        requestDuration.record(System.nanoTime() - request.getCreatedAt());
+    }
+
+    public void peersEvicted(int count) {
+        peersEvicted.add(count);
+    }
+
+    public void heartbeatTimedOut() {
+        heartbeatTimeouts.increment();
+    }
+
+    //Called on entering a lock with the time taken just before trying to
+    public void lockAcquired(long waitStartedAt) {
+        lockWait.record(System.nanoTime() - waitStartedAt);
+    }
+
+    //Counts the bytes read from a peer's control connection
+    public InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    controlBytesIn.increment();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte buffer[], int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    controlBytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    //Counts the bytes written to a peer's control connection
+    public OutputStream countSent(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                controlBytesOut.increment();
+            }
+
+            @Override
+            public void write(byte buffer[], int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                controlBytesOut.add(length);
+            }
+        };
+    }
+
+    /**
+     * Renders every metric as "name value" lines, with the labels of a
+     * metric in braces, in the plain text format most scrapers understand.
+     */
+    public String render(SharedData sharedData) {
+
+        StringBuilder text = new StringBuilder(4096);
+        line(text, "tracker_uptime_seconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt));
+
+        //Resource use of the whole tracker process
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            text.append("process_cpu_seconds_total ").append(seconds(((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime())).append('\n');
+        }
+        //Includes the native stacks of platform threads, which the heap does not
+        long resident = residentBytes();
+        if (resident >= 0) {
+            line(text, "process_resident_memory_bytes", resident);
+        }
+        line(text, "jvm_heap_used_bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        line(text, "jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+
+        line(text, "tracker_connected_peers", sharedData.getSessionCount());
+        //Ids are never reused, so this only grows
+        line(text, "tracker_peer_ids_assigned", sharedData.getKnownPeers().size());
+        line(text, "tracker_indexed_files", sharedData.getFileCount());
+        line(text, "tracker_file_owners", sharedData.getOwnershipCount());
+        line(text, "tracker_requests_in_flight", sharedData.getActiveRequestCount());
+        line(text, "tracker_sources_busy", sharedData.getBusySourceCount());
+        line(text, "tracker_requests_queued", sharedData.getQueuedRequestCount());
+        line(text, "tracker_store_pending_records", sharedData.getPendingStoreRecords());
+
+        line(text, "tracker_connections_accepted_total", connectionsAccepted.sum());
+        line(text, "tracker_control_bytes_received_total", controlBytesIn.sum());
+        line(text, "tracker_control_bytes_sent_total", controlBytesOut.sum());
+        line(text, "tracker_requests_created_total", requestsCreated.sum());
+        line(text, "tracker_requests_unavailable_total", requestsUnavailable.sum());
+        line(text, "tracker_requests_completed_total", requestsCompleted.sum());
+        line(text, "tracker_peers_evicted_total", peersEvicted.sum());
+        line(text, "tracker_heartbeat_timeouts_total", heartbeatTimeouts.sum());
+        line(text, "tracker_commands_unknown_total", unknownCommands.sum());
+
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            histogram(text, "tracker_command_seconds", "{command=\"" + COMMAND_NAMES[i] + "\"}", commandLatency[i]);
+        }
+        histogram(text, "tracker_request_seconds", "", requestDuration);
+        histogram(text, "tracker_lock_wait_seconds", "", lockWait);
+        return text.toString();
+    }
+
+    //Resident set size of the process as Linux reports it; -1 elsewhere
+    private static long residentBytes() {
+        try (BufferedReader status = Files.newBufferedReader(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = status.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    //"VmRSS:     123456 kB"
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            //Not Linux
+        }
+        return -1;
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        String quantileLabel = labels.isEmpty() ? "{quantile=\"" : labels.substring(0, labels.length() - 1) + ",quantile=\"";
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            text.append(name).append(quantileLabel).append(quantile).append("\"} ")
+                    .append(seconds(histogram.getQuantileNanos(quantile))).append('\n');
+        }
+        text.append(name).append("_max").append(labels).append(' ').append(seconds(histogram.getMaxNanos())).append('\n');
+        text.append(name).append("_sum").append(labels).append(' ').append(seconds(histogram.getTotalNanos())).append('\n');
+        text.append(name).append("_count").append(labels).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        //The exposition format wants a dot whatever the locale of the JVM
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,414 @@
+package backend.tracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the tracker's file index on disk so that a restarted tracker can
+ * serve requests without waiting for every peer to upload its list again.
+ *
+ * Every change is appended to a change log by a background writer thread,
+ * which flushes whenever it runs out of work. Periodically the log is
+ * compacted: the writer switches to a new log generation and a snapshot of
+ * the in-memory state is written next to it, after which older logs are
+ * deleted. On startup the snapshot is loaded and the logs of its generation
+ * and later are replayed on top; replaying a change that the snapshot
+ * already contains is harmless.
+ *
+ * @author hexbioc
+ */
+public class TrackerStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x54524B53;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String LOG_PREFIX = "changes.";
+    private static final String LOG_SUFFIX = ".log";
+    //Subdirectories holding an index that could not be restored
+    private static final String ASIDE_PREFIX = "unrestored.";
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    //Compact once this many changes have been logged since the last snapshot
+    private static final long SNAPSHOT_THRESHOLD = 500000;
+    //Check the threshold this often
+    private static final long SNAPSHOT_CHECK_MILLIS = 30000;
+
+    /*LOG RECORDS*/
+    //Owner, file name and size
+    static final byte RECORD_ADD = 1;
+    //Owner and file name
+    static final byte RECORD_REMOVE = 2;
+    //Owner changing the size, file name and size
+    static final byte RECORD_SIZE = 3;
+    //Peer, epoch and version of the peer's file list
+    static final byte RECORD_LIST_VERSION = 4;
+    //Peer whose files were all removed
+    static final byte RECORD_PEER_REMOVED = 5;
+
+    //Queue marker asking the writer to switch to the next log generation
+    private static final byte[] ROTATE = new byte[0];
+
+    private final File directory;
+    private final LinkedBlockingQueue<byte[]> pendingRecords;
+    private final AtomicLong recordsSinceSnapshot;
+    private volatile CountDownLatch rotated;
+    private long generation;
+    private DataOutputStream log;
+    private Thread writer;
+    //Whether the writer is running; once it stops nothing is queued or waited for any more
+    private volatile boolean writing;
+    private volatile boolean closed;
+
+    public TrackerStore(File directory) {
+        this.directory = directory;
+        pendingRecords = new LinkedBlockingQueue<>();
+        recordsSinceSnapshot = new AtomicLong();
+        generation = 0;
+        writing = false;
+        closed = false;
+    }
+
+    /**
+     * Loads the snapshot and replays the change logs into the shared data.
+     * Must be called before the store is attached to the shared data, so
+     * that the restored changes are not logged again.
+     */
+    public void restore(SharedData sharedData) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create tracker data directory " + directory);
+        }
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            generation = readSnapshot(snapshot, sharedData);
+        }
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration >= generation) {
+                recordsSinceSnapshot.addAndGet(replayLog(logFile(logGeneration), sharedData));
+                generation = logGeneration;
+            }
+        }
+    }
+
+    /**
+     * Moves the snapshot and the change logs into a subdirectory of their
+     * own after they could not be restored, so that the store starts empty
+     * and the unreadable index is kept for a look. Returns the subdirectory.
+     */
+    public File setAside() throws IOException {
+        File aside = new File(directory, ASIDE_PREFIX + System.currentTimeMillis());
+        if (!aside.mkdir()) {
+            throw new IOException("Cannot create " + aside);
+        }
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            Files.move(snapshot.toPath(), new File(aside, SNAPSHOT_FILE).toPath());
+        }
+        for (long logGeneration : logGenerations()) {
+            File logFile = logFile(logGeneration);
+            Files.move(logFile.toPath(), new File(aside, logFile.getName()).toPath());
+        }
+        generation = 0;
+        recordsSinceSnapshot.set(0);
+        return aside;
+    }
+
+    //Starts the log writer and the periodic compaction
+    public void start(final SharedData sharedData) throws IOException {
+
+        //Never append to a log that may end in a torn record
+        generation++;
+        log = openLog(generation);
+
+        writing = true;
+        writer = new Thread(this::writeLoop, "tracker-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Thread compactor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(SNAPSHOT_CHECK_MILLIS);
+                    if (recordsSinceSnapshot.get() >= SNAPSHOT_THRESHOLD) {
+                        snapshot(sharedData);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IOException ex) {
+                    Logger.getLogger(TrackerStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, "tracker-store-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    //Writes out every change logged so far and stops the writer
+    public void close() {
+        closed = true;
+        pendingRecords.add(ROTATE);
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //False before the store is started and once its writer has stopped, after a write error or on close
+    public boolean isWriting() {
+        return writing;
+    }
+
+    int getPendingRecordCount() {
+        return pendingRecords.size();
+    }
+
+    /*CHANGE LOGGING; CALLED ON THE TRACKER'S HOT PATH, NEVER BLOCKS ON DISK*/
+    void logAdd(String owner, String fileName, long fileSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + fileName.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(RECORD_ADD);
+            out.writeUTF(owner);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+        } catch (IOException ex) {
+            //Writing to memory does not fail
+        }
+        append(bytes.toByteArray());
+    }
+
+    void logRemove(String owner, String fileName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + fileName.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(RECORD_REMOVE);
+            out.writeUTF(owner);
+            out.writeUTF(fileName);
+        } catch (IOException ex) {
+            //Writing to memory does not fail
+        }
+        append(bytes.toByteArray());
+    }
+
+    void logSize(String owner, String fileName, long fileSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + fileName.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(RECORD_SIZE);
+            out.writeUTF(owner);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+        } catch (IOException ex) {
+            //Writing to memory does not fail
+        }
+        append(bytes.toByteArray());
+    }
+
+    void logListVersion(String peer, long epoch, long version) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(RECORD_LIST_VERSION);
+            out.writeUTF(peer);
+            out.writeLong(epoch);
+            out.writeLong(version);
+        } catch (IOException ex) {
+            //Writing to memory does not fail
+        }
+        append(bytes.toByteArray());
+    }
+
+    void logPeerRemoved(String peer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(RECORD_PEER_REMOVED);
+            out.writeUTF(peer);
+        } catch (IOException ex) {
+            //Writing to memory does not fail
+        }
+        append(bytes.toByteArray());
+    }
+
+    private void append(byte record[]) {
+        if (writing && !closed) {
+            pendingRecords.add(record);
+            recordsSinceSnapshot.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte record[] = pendingRecords.take();
+                if (record == ROTATE) {
+                    log.close();
+                    if (closed) {
+                        return;
+                    }
+                    generation++;
+                    log = openLog(generation);
+                    rotated.countDown();
+                    continue;
+                }
+                log.write(record);
+                //Group commit: flush once the queue has been drained
+                if (pendingRecords.isEmpty()) {
+                    log.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(TrackerStore.class.getName()).log(Level.SEVERE, "Tracker change log is no longer written", ex);
+        } finally {
+            //Nothing queued from now on would be written; a snapshot waiting for its rotation gives up
+            writing = false;
+            pendingRecords.clear();
+            CountDownLatch waiting = rotated;
+            if (waiting != null) {
+                waiting.countDown();
+            }
+        }
+    }
+
+    /**
+     * Writes a compact snapshot of the shared data and deletes the logs it
+     * makes redundant. Fails without waiting once the writer has stopped.
+     */
+    public synchronized void snapshot(SharedData sharedData) throws IOException {
+
+        long started = System.nanoTime();
+        //Changes logged from now on go to the new generation and are replayed on top of the snapshot
+        rotated = new CountDownLatch(1);
+        //Read after the latch is published, so a writer stopping meanwhile either sees the latch or is seen here
+        if (!writing) {
+            throw new IOException("Tracker change log is no longer written; no snapshot taken");
+        }
+        pendingRecords.add(ROTATE);
+        try {
+            rotated.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!writing) {
+            throw new IOException("Tracker change log is no longer written; no snapshot taken");
+        }
+        long snapshotGeneration = generation;
+        recordsSinceSnapshot.set(pendingRecords.size());
+
+        File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, IO_BUFFER_SIZE));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_FORMAT);
+        out.writeLong(snapshotGeneration);
+        int fileCount = sharedData.writeSnapshot(out);
+        out.flush();
+        fos.getFD().sync();
+        out.close();
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < snapshotGeneration) {
+                logFile(logGeneration).delete();
+            }
+        }
+        System.out.printf("Tracker snapshot written: %d files in %d ms%n", fileCount, (System.nanoTime() - started) / 1000000);
+    }
+
+    private long readSnapshot(File snapshot, SharedData sharedData) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), IO_BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT) {
+                throw new IOException("Not a tracker snapshot: " + snapshot);
+            }
+            long snapshotGeneration = in.readLong();
+            sharedData.readSnapshot(in);
+            return snapshotGeneration;
+        }
+    }
+
+    private long replayLog(File logFile, SharedData sharedData) throws IOException {
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), IO_BUFFER_SIZE))) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                switch (type) {
+                    case RECORD_ADD:
+                        sharedData.addFileInfo(in.readUTF(), in.readUTF(), in.readLong());
+                        break;
+                    case RECORD_REMOVE:
+                        sharedData.removeFileInfo(in.readUTF(), in.readUTF());
+                        break;
+                    case RECORD_SIZE:
+                        sharedData.updateFileSize(in.readUTF(), in.readUTF(), in.readLong());
+                        break;
+                    case RECORD_LIST_VERSION:
+                        sharedData.finishFileList(in.readUTF(), in.readLong(), in.readLong());
+                        break;
+                    case RECORD_PEER_REMOVED:
+                        sharedData.removePeer(in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("Corrupt tracker change log " + logFile);
+                }
+                records++;
+            }
+        } catch (EOFException ex) {
+            //The tracker stopped in the middle of writing the last record; everything before it is intact
+        }
+        return records;
+    }
+
+    private DataOutputStream openLog(long logGeneration) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile(logGeneration), true), IO_BUFFER_SIZE));
+    }
+
+    private File logFile(long logGeneration) {
+        return new File(directory, LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    //Generations of the logs on disk, oldest first
+    private ArrayList<Long> logGenerations() {
+        ArrayList<Long> generations = new ArrayList<>();
+        String names[] = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        //Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
@@ -1,166 +1,389 @@
 package backend.tracker;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class TrackerThread implements Runnable {
+public class TrackerThread implements Runnable, PeerSession {
 
     /*TRACKER COMMAND LIST*/
-    //Ask peer to send the list of files it has on its local storage
+    //Ask peer to send the list of files it has on its local storage; followed by the epoch
+    //and version of the list the tracker already has, so that only the changes are sent
     private static final byte GET_FILE_LIST = 1;
     //Get the status of the connected peer (IDLE/FILE_LIST_UPDATED/FILE_REQUIRED/TERMINATE)
+    //No longer sent by the tracker; peers push their status as it changes
     private static final byte GET_PEER_STATUS = 2;
-    //Ask the peer to connect to the peer at the IP that is sent following the command
+    //Ask the peer to connect to the peer at the IP that is sent following the command, then the file name and request id
     private static final byte COMMUNICATE_WITH_PEER = 3;
+    //Answer to a file request; followed by the file name, availability and, if available,
+    //the number of peers with the file and the file size
+    private static final byte FILE_REQUEST_REPLY = 4;
+    //Answer to a batch of small files; followed by the number of files and, for each, the name,
+    //availability and, if available, the file size; those available come in bundles
+    private static final byte FILES_BUNDLED_REPLY = 5;
+    //Ask the peer to send a bundle of files to the peer at the IP that follows; then the request id,
+    //the number of files and their names
+    private static final byte COMMUNICATE_BUNDLE = 6;
     /*PEER REPLIES TO TRACKER*/
-    //Peer is idle
+    //Peer is idle; also pushed every few seconds as a heartbeat
     private static final byte PEER_REPLY_IDLE = 0;
-    //Peer's file list is updated
+    //Peer's file list is updated; reply will be followed by the file list
+    //(type, epoch, base version, new version, entry count, entries)
     private static final byte PEER_REPLY_FILE_LIST_UPDATED = 1;
     //Peer requires a file; reply will be followed by the file name
     private static final byte PEER_REPLY_FILE_REQUIRED = 2;
     //Peer wishes to terminate connection; remove peers IP from the fileTable entries and close the socket
     private static final byte PEER_REPLY_TERMINATE = 3;
+    //Peer has finished sending its share for a request; followed by the request id
+    private static final byte PEER_REPLY_UPLOAD_COMPLETE = 4;
+    //Peer requires a batch of files; followed by the number of files and their names
+    private static final byte PEER_REPLY_FILES_REQUIRED = 5;
     /*TRACKER REPLIES*/
     private static final byte FILE_AVAILABLE = 1;
     private static final byte FILE_NOT_AVAILABLE = 0;
+    /*FILE LIST TYPES*/
+    private static final byte LIST_FULL = 0;
+    private static final byte LIST_DELTA = 1;
+    /*FILE LIST ENTRIES*/
+    //File added; followed by the name and the size
+    private static final byte CHANGE_ADD = 0;
+    //File removed; followed by the name
+    private static final byte CHANGE_REMOVE = 1;
+    //File size changed; followed by the name and the new size
+    private static final byte CHANGE_SIZE = 2;
 
     private final Socket peerSocket;
     private final int threadNumber;
     private final String peerInetAddress;
     private final DataOutputStream dos;
+    //Commands pushed for other peers are written by a pusher thread; a lock rather than a monitor,
+    //so that a virtual thread blocked writing while holding it does not pin its carrier
+    private final ReentrantLock writeLock;
+    //Commands pushed from the threads of other peers, written by a pusher so that those threads never wait on this peer
+    private final ConcurrentLinkedQueue<byte[]> pushed;
+    //Set while a pusher is writing out the queue above
+    private final AtomicBoolean pushing;
+    //Runs the pushers of every session
+    private final Executor pushers;
     private final DataInputStream dis;
     private final SharedData sharedData;
+    //Set when the tracker closed the connection itself, so the failing read is expected
+    private volatile boolean disconnected;
 
-    public TrackerThread(Socket socket, SharedData sharedData, int threadNumber) throws IOException {
+    public TrackerThread(Socket socket, SharedData sharedData, int threadNumber, Executor pushers) throws IOException {
         this.peerSocket = socket;
         this.threadNumber = threadNumber;
         this.sharedData = sharedData;
+        this.pushers = pushers;
 
+        writeLock = new ReentrantLock();
+        pushed = new ConcurrentLinkedQueue<>();
+        pushing = new AtomicBoolean();
         peerInetAddress = peerSocket.getInetAddress().getHostAddress();
-        dos = new DataOutputStream(peerSocket.getOutputStream());
-        dis = new DataInputStream(peerSocket.getInputStream());
+        //Count the control traffic on its way through
+        dos = new DataOutputStream(sharedData.getMetrics().countSent(peerSocket.getOutputStream()));
+        dis = new DataInputStream(sharedData.getMetrics().countReceived(peerSocket.getInputStream()));
+    }
+
+    @Override
+    public String getPeerInetAddress() {
+        return peerInetAddress;
     }
 
     public void sendCommand(byte command) {
 
         try {
-            dos.write(command);
+            writeLock.lock();
+            try {
+                dos.write(command);
+            } finally {
+                writeLock.unlock();
+            }
            // System.out.printf("Sent command to peer %s\t: %d%n", peerInetAddress, command);
         } catch (IOException ex) {
             Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    public void receiveFileList() {
-        String fileName = null;
-        long fileSize = 0L;
+    public void requestFileList() {
 
         try {
-            while (!(fileName = dis.readUTF()).equals("end")) {
-                fileSize = dis.readLong();
-                sharedData.addFileInfo(peerInetAddress, fileName, fileSize);
+            writeLock.lock();
+            try {
+                dos.write(GET_FILE_LIST);
+                dos.writeLong(sharedData.getFileListEpoch(peerInetAddress));
+                dos.writeLong(sharedData.getFileListVersion(peerInetAddress));
+            } finally {
+                writeLock.unlock();
             }
-
         } catch (IOException ex) {
             Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    public void terminateConnection() throws IOException {
+    public void receiveFileList() throws IOException {
+
+        boolean fullList = dis.readByte() == LIST_FULL;
+        long epoch = dis.readLong();
+        long baseVersion = dis.readLong();
+        long version = dis.readLong();
+        int entryCount = dis.readInt();
+        boolean accepted = sharedData.startFileList(peerInetAddress, fullList, epoch, baseVersion);
+
+        for (int i = 0; i < entryCount; i++) {
+            byte change = dis.readByte();
+            String fileName = dis.readUTF();
+            long fileSize = (change == CHANGE_REMOVE) ? 0 : dis.readLong();
+            if (!accepted) {
+                continue;
+            }
+            switch (change) {
+                case CHANGE_ADD:
+                    sharedData.addFileInfo(peerInetAddress, fileName, fileSize);
+                    break;
+                case CHANGE_REMOVE:
+                    sharedData.removeFileInfo(peerInetAddress, fileName);
+                    break;
+                case CHANGE_SIZE:
+                    sharedData.updateFileSize(peerInetAddress, fileName, fileSize);
+                    break;
+            }
+        }
+
+        if (accepted) {
+            sharedData.finishFileList(peerInetAddress, epoch, version);
+        } else {
+            //Changes were made against a list the tracker does not have; ask again
+            requestFileList();
+        }
+    }
+
+    public void terminateConnection(boolean departed) throws IOException {
 
-        /* Add code to remove peers entries from the shared data here*/
+        //A departed peer is evicted from the file index at once, a vanished one after a grace period
+        sharedData.unregisterSession(this, departed);
         dis.close();
         dos.close();
         peerSocket.close();
     }
 
+    @Override
+    public void communicateWithPeer(TransferRequest request) {
+
+        //Ask the currently connected peer to communicate with askingPeer; called from the thread of the asking peer
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (request.isBundle()) {
+                out.write(COMMUNICATE_BUNDLE);
+                out.writeUTF(request.getAskingPeer());
+                out.writeLong(request.getRequestId());
+                out.writeInt(request.getBundledFiles().size());
+                for (String fileName : request.getBundledFiles()) {
+                    out.writeUTF(fileName);
+                }
+            } else {
+                out.write(COMMUNICATE_WITH_PEER);
+                //Send the InetAddress of the asking peer
+                out.writeUTF(request.getAskingPeer());
+                //Send the file it asked for, so the connection can be matched to its download
+                out.writeUTF(request.getFileName());
+                //Send the request id; the peer reports the upload as complete with it
+                out.writeLong(request.getRequestId());
+            }
+        } catch (IOException ex) {
+            //Not thrown by an in-memory stream
+            throw new IllegalStateException(ex);
+        }
+        pushed.add(bytes.toByteArray());
+        if (pushing.compareAndSet(false, true)) {
+            pushers.execute(this::writePushed);
+        }
+    }
+
+    //Writes out the pushed commands in the order they came; only one pusher runs for a session at a time
+    private void writePushed() {
+        while (true) {
+            byte command[];
+            while ((command = pushed.poll()) != null) {
+                writeLock.lock();
+                try {
+                    //Written at once; the stream is not buffered
+                    dos.write(command);
+                } catch (IOException ex) {
+                    //The connection is gone; the session is ended by the failing read in run()
+                    Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
+                    pushed.clear();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            pushing.set(false);
+            //A command queued after the last poll but before the flag was cleared has no pusher yet
+            if (pushed.isEmpty() || !pushing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void requestFile(String requiredFile) throws IOException {
+
+        //Choose the connected peers that will send the file
+        TransferRequest request = sharedData.createFileRequest(requiredFile, peerInetAddress);
+        writeLock.lock();
+        try {
+            dos.write(FILE_REQUEST_REPLY);
+            dos.writeUTF(requiredFile);
+            if (request != null) {
+                //File is available; send status
+                dos.write(FILE_AVAILABLE);
+                //Follow up by sending the number of peers with file
+                dos.writeInt(request.getSourceCount());
+                //Follow up by sending the file size
+                dos.writeLong(sharedData.getFileSize(requiredFile));
+            } else {
+                //File is not available
+                dos.write(FILE_NOT_AVAILABLE);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (request != null) {
+            //Route the request to the owners only after the asking peer has its answer
+            sharedData.dispatchFileRequest(request);
+        }
+    }
+
+    //Small files of the batch are sent in bundles, the others each on their own as if asked for singly
+    private void requestFiles() throws IOException {
+
+        int fileCount = dis.readInt();
+        ArrayList<String> small = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            String requiredFile = dis.readUTF();
+            if (sharedData.isBundled(requiredFile)) {
+                small.add(requiredFile);
+            } else {
+                requestFile(requiredFile);
+            }
+        }
+        List<TransferRequest> bundles = sharedData.createBundleRequests(small, peerInetAddress);
+        HashSet<String> bundled = new HashSet<>();
+        for (TransferRequest bundle : bundles) {
+            bundled.addAll(bundle.getBundledFiles());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(FILES_BUNDLED_REPLY);
+        out.writeInt(small.size());
+        for (String requiredFile : small) {
+            out.writeUTF(requiredFile);
+            if (bundled.contains(requiredFile)) {
+                out.write(FILE_AVAILABLE);
+                out.writeLong(sharedData.getFileSize(requiredFile));
+            } else {
+                out.write(FILE_NOT_AVAILABLE);
+            }
+        }
+        writeLock.lock();
+        try {
+            bytes.writeTo(dos);
+        } finally {
+            writeLock.unlock();
+        }
+        //Route the bundles to their sources only after the asking peer has its answer
+        for (TransferRequest bundle : bundles) {
+            sharedData.dispatchFileRequest(bundle);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        disconnected = true;
+        try {
+            //Unblocks the read in run()
+            peerSocket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     @Override
     public void run() {
         try {
-            //System.out.println("Something here soon...");
-            dos.write(GET_FILE_LIST);
-            receiveFileList();
+            sharedData.registerSession(this);
+            requestFileList();
 
-            byte reply;
+            int reply;
             boolean terminateFlag = false;
             while (!terminateFlag) {
-                sendCommand(GET_PEER_STATUS);
-                
-                reply = (byte) dis.read();
+                //Block until the peer reports a change; an idle peer only sends heartbeats
+                reply = dis.read();
+                if (reply >= 0) {
+                    sharedData.peerSeen(peerInetAddress);
+                }
+                long handlingStartedAt = System.nanoTime();
                 switch (reply) {
-                    
+
                     case PEER_REPLY_IDLE:
-                        //Wait for sometime and continue
-                        
                         break;
-                        
+
                     case PEER_REPLY_FILE_LIST_UPDATED:
-                        sendCommand(GET_FILE_LIST);
                         receiveFileList();
                         break;
-                    
+
                     case PEER_REPLY_FILE_REQUIRED:
                         //Read the name of the file
-                        String requiredFile = dis.readUTF();
-                        //Get the number of peers having the file
-                        int peerCount = sharedData.getPeerCount(requiredFile);
-                        if (peerCount != 0) {
-                            //File is available; send status
-                            sendCommand(FILE_AVAILABLE);
-                            //Follow up by sending the number of peers with file
-                            dos.writeInt(peerCount);
-                            //Follow up by sending the file size
-                            dos.writeLong(sharedData.getFileSize(requiredFile));
-                            //Set the required file name in the sharedData
-                            while (!sharedData.setFileRequest(requiredFile, peerInetAddress, peerCount));
-                        } else {
-                            //File is not available
-                            sendCommand(FILE_NOT_AVAILABLE);
-                        }
+                        requestFile(dis.readUTF());
+                        break;
+
+                    case PEER_REPLY_FILES_REQUIRED:
+                        requestFiles();
+                        break;
+
+                    case PEER_REPLY_UPLOAD_COMPLETE:
+                        //Followed by the id of the request; hand this peer the next request waiting for it, if any
+                        sharedData.uploadComplete(peerInetAddress, dis.readLong());
                         break;
-                    
+
                     case PEER_REPLY_TERMINATE:
-                        //Peer wants to terminate connection; remove peer's entry
-                        //from the lists and close socket & streams
+                        //Peer wants to terminate connection; remove peer's entry from the lists
+                        //and close socket & streams
                         terminateFlag = true;
-                        terminateConnection();
+                        terminateConnection(true);
+                        break;
+
+                    case -1:
+                        //Peer has gone away; it may still come back
+                        terminateFlag = true;
+                        terminateConnection(false);
                         break;
                 }
-                
-                //Check if any file is required by another peer
-                if(sharedData.isNewRequestAvailable()) {
-                    
-                    String requestedFile = sharedData.getRequestedFile();
-                    String askingPeer = sharedData.getAskingPeer();
-                    
-                    if(!askingPeer.equals(peerInetAddress)) {
-                        //The asking peer is not the currently connected peer
-                        //Check if connected peer has requested file
-                        HashSet<String> hs = (HashSet<String>)sharedData.getFileOwners(requestedFile);
-                        if(hs.contains(peerInetAddress)) {
-                            //Currently connected peer has required file
-                            //Ask it to communicate with askingPeer
-                            sendCommand(COMMUNICATE_WITH_PEER);
-                            //Send the InetAddress of the asking peer
-                            dos.writeUTF(askingPeer);
-                            //Decrement the counter of the shared data
-                            sharedData.decrementPeerCount();
-                            //Wait till the transfer completes, so that thread does not
-                            //attempt another transfer again
-                            System.out.println("Waiting until file transfer completes...");
-                            while(sharedData.isNewRequestAvailable());
-                        }
-                    }
-                }
+                //Includes reading the body of the message, such as the entries of a file list
+                sharedData.getMetrics().commandHandled(reply, System.nanoTime() - handlingStartedAt);
             }
         } catch (IOException ex) {
-            Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
+            if (!disconnected) {
+                Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            sharedData.unregisterSession(this);
+            //Closing the socket closes its streams too
+            try {
+                peerSocket.close();
+            } catch (IOException closeEx) {
+                Logger.getLogger(TrackerThread.class.getName()).log(Level.SEVERE, null, closeEx);
+            }
         }
     }
 }
@@ -0,0 +1,99 @@
+package backend.tracker;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file request placed by a peer and the owners chosen to serve it. The
+ * request stays in flight until every source has reported that its upload
+ * has completed. A bundle request is for several small files at once,
+ * all from a single source over one connection.
+ *
+ * @author hexbioc
+ */
+public class TransferRequest {
+
+    //Files named in a bundle by toString()
+    private static final int NAMES_SHOWN = 3;
+
+    private final long requestId;
+    //The file asked for; null for a bundle request
+    private final String fileName;
+    //The files of a bundle request; null for a request for a single file
+    private final List<String> bundledFiles;
+    private final String askingPeer;
+    private final List<String> sources;
+    private final long createdAt;
+    //Number of sources that have not finished uploading yet; guarded by the SharedData request lock
+    private int pendingSources;
+
+    TransferRequest(long requestId, String fileName, String askingPeer, List<String> sources) {
+        this(requestId, fileName, null, askingPeer, sources);
+    }
+
+    //A bundle of the files from the single source
+    TransferRequest(long requestId, List<String> bundledFiles, String askingPeer, String source) {
+        this(requestId, null, bundledFiles, askingPeer, Collections.singletonList(source));
+    }
+
+    private TransferRequest(long requestId, String fileName, List<String> bundledFiles, String askingPeer, List<String> sources) {
+        this.requestId = requestId;
+        this.fileName = fileName;
+        this.bundledFiles = bundledFiles;
+        this.askingPeer = askingPeer;
+        this.sources = sources;
+        this.createdAt = System.nanoTime();
+        this.pendingSources = sources.size();
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    //Null for a bundle request, whose files are in getBundledFiles()
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isBundle() {
+        return bundledFiles != null;
+    }
+
+    public List<String> getBundledFiles() {
+        return bundledFiles;
+    }
+
+    public String getAskingPeer() {
+        return askingPeer;
+    }
+
+    public List<String> getSources() {
+        return sources;
+    }
+
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    //Returns true once the last source is done
+    boolean sourceFinished() {
+        return --pendingSources == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[REQUEST " + requestId + "] " + (isBundle() ? describeBundle() : fileName) + " for " + askingPeer + " from " + sources;
+    }
+
+    private String describeBundle() {
+        StringBuilder description = new StringBuilder("bundle of ").append(bundledFiles.size()).append(" files (");
+        for (int i = 0; i < Math.min(NAMES_SHOWN, bundledFiles.size()); i++) {
+            description.append(i > 0 ? ", " : "").append(bundledFiles.get(i));
+        }
+        return description.append(bundledFiles.size() > NAMES_SHOWN ? ", ...)" : ")").toString();
+    }
+}
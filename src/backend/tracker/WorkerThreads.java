@@ -0,0 +1,84 @@
+package backend.tracker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that spend nearly all their time blocked on a
+ * socket: those serving a peer connection each on the tracker, and the
+ * connections, downloads and uploads of a peer. They can be virtual
+ * threads, which cost a few hundred bytes of heap while parked instead of
+ * a native stack each, so tens of thousands of connections stay cheap.
+ * Virtual threads need Java 21; the tracker and the peer are built for
+ * Java 8, so they are created through reflection and platform threads are
+ * used where they are missing.
+ *
+ * Blocking while holding a monitor pins a virtual thread to its carrier, so
+ * everything these threads block on while holding a lock uses
+ * java.util.concurrent locks instead of synchronized.
+ *
+ * @author hexbioc
+ */
+public final class WorkerThreads {
+
+    //Thread.ofVirtual() and Thread.Builder.unstarted(Runnable); null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            //Only a preview feature on Java 19 and 20; fails there unless previews are enabled
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private WorkerThreads() {
+    }
+
+    public static boolean isVirtualAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    //An unstarted thread; a virtual one if asked for and available
+    public static Thread newThread(String name, Runnable task, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+                thread.setName(name);
+                return thread;
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                throw new IllegalStateException("Cannot create a virtual thread", ex);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * An unstarted thread, a virtual one if asked for and available.
+     * Virtual threads are always daemon threads; a platform thread is made
+     * one if asked to.
+     */
+    public static Thread newThread(String name, Runnable task, boolean virtual, boolean daemon) {
+        Thread thread = newThread(name, task, virtual);
+        //A virtual thread cannot stop being a daemon thread
+        if (!thread.isDaemon() || daemon) {
+            thread.setDaemon(daemon);
+        }
+        return thread;
+    }
+
+    //Daemon threads for a pool
+    public static ThreadFactory factory(String name, boolean virtual) {
+        return task -> newThread(name, task, virtual, true);
+    }
+}
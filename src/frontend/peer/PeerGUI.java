@@ -313,7 +313,8 @@ public class PeerGUI extends javax.swing.JFrame {
 
     private void chooseFileButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chooseFileButtonActionPerformed
 
-        jFC.setFileSelectionMode(javax.swing.JFileChooser.FILES_ONLY);
+        //A directory is shared as a whole
+        jFC.setFileSelectionMode(javax.swing.JFileChooser.FILES_AND_DIRECTORIES);
         int option = jFC.showOpenDialog(PeerGUI.this);
 
         if (option == JFileChooser.APPROVE_OPTION) {
@@ -323,9 +324,9 @@ public class PeerGUI extends javax.swing.JFrame {
             int row = peer.getPathMap().size() - 1;
             
             if(row > 3) {
-                dtm.addRow(new String[] {selectedFile.getName(), selectedFile.getAbsolutePath()});
+                dtm.addRow(new String[] {Peer.getShareName(selectedFile), selectedFile.getAbsolutePath()});
             }
-            dtm.setValueAt(selectedFile.getName(), row, 0);
+            dtm.setValueAt(Peer.getShareName(selectedFile), row, 0);
             dtm.setValueAt(selectedFile.getAbsolutePath(), row, 1);
         }
     }//GEN-LAST:event_chooseFileButtonActionPerformed
@@ -0,0 +1,253 @@
+package backend.peer;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * How the scheduler hands out pieces, and the endgame: how many copies of
+ * a piece are asked for, which copy claims it, and which may write in
+ * place.
+ *
+ * @author hexbioc
+ */
+public class PieceSchedulerTest {
+
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        threads.shutdownNow();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static PieceScheduler scheduler(int pieceCount) {
+        return new PieceScheduler((long) pieceCount * PieceScheduler.PIECE_SIZE);
+    }
+
+    private static BitSet pieces(int... held) {
+        BitSet pieces = new BitSet();
+        for (int piece : held) {
+            pieces.set(piece);
+        }
+        return pieces;
+    }
+
+    @Test
+    public void lastPieceIsShort() {
+        PieceScheduler scheduler = new PieceScheduler(2L * PieceScheduler.PIECE_SIZE + 10);
+        assertEquals(3, scheduler.getPieceCount());
+        assertEquals(PieceScheduler.PIECE_SIZE, scheduler.pieceLength(1));
+        assertEquals(10, scheduler.pieceLength(2));
+        assertEquals(2L * PieceScheduler.PIECE_SIZE, scheduler.pieceOffset(2));
+    }
+
+    @Test
+    public void rarestPieceFirst() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(3);
+        int everything = scheduler.addSource(scheduler.allPieces());
+        scheduler.addSource(pieces(0, 1));
+        //Piece 2 is held by one source, the others by two
+        assertEquals(2, scheduler.next(everything, false));
+        assertEquals(0, scheduler.next(everything, false));
+        assertEquals(1, scheduler.next(everything, false));
+    }
+
+    @Test
+    public void noCopyWhileAPieceIsFree() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(4);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        assertEquals(0, scheduler.next(first, false));
+        assertEquals(1, scheduler.next(second, false));
+        assertEquals(2, scheduler.next(first, false));
+        assertEquals(3, scheduler.next(second, false));
+        //Only now the endgame: a copy of a piece the source is not receiving itself
+        int copy = scheduler.next(first, false);
+        assertTrue(copy == 1 || copy == 3);
+    }
+
+    @Test
+    public void endgameCopiesAreLimited() throws InterruptedException {
+        int pieceCount = 3;
+        PieceScheduler scheduler = scheduler(pieceCount);
+        int sources[] = new int[8];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = scheduler.addSource(scheduler.allPieces());
+        }
+        int copies[] = new int[pieceCount];
+        boolean handedOut = true;
+        while (handedOut) {
+            handedOut = false;
+            for (int source : sources) {
+                int piece = scheduler.next(source, false);
+                if (piece >= 0) {
+                    copies[piece]++;
+                    handedOut = true;
+                }
+            }
+        }
+        for (int piece = 0; piece < pieceCount; piece++) {
+            assertEquals(PieceScheduler.MAX_COPIES, copies[piece]);
+        }
+    }
+
+    @Test
+    public void sourceNeverGetsTwoCopiesOfAPiece() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(2);
+        int sources[] = new int[4];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = scheduler.addSource(scheduler.allPieces());
+        }
+        for (int source : sources) {
+            Set<Integer> received = new HashSet<>();
+            for (int piece = scheduler.next(source, false); piece >= 0; piece = scheduler.next(source, false)) {
+                assertTrue(received.add(piece));
+            }
+        }
+    }
+
+    @Test
+    public void droppedCopyFreesItsPlace() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(1);
+        int sources[] = new int[PieceScheduler.MAX_COPIES + 1];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = scheduler.addSource(scheduler.allPieces());
+        }
+        for (int i = 0; i < PieceScheduler.MAX_COPIES; i++) {
+            assertEquals(0, scheduler.next(sources[i], false));
+        }
+        int last = sources[PieceScheduler.MAX_COPIES];
+        assertEquals(-1, scheduler.next(last, false));
+        scheduler.dropped(0, sources[0]);
+        assertEquals(0, scheduler.next(last, false));
+    }
+
+    @Test
+    public void firstArrivalClaimsThePiece() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        assertEquals(0, scheduler.next(first, false));
+        assertEquals(0, scheduler.next(second, false));
+        assertTrue(scheduler.isWanted(0));
+        assertTrue(scheduler.arrived(0, second));
+        assertFalse(scheduler.isWanted(0));
+        assertFalse(scheduler.arrived(0, first));
+        //While it is verified the piece is not handed out again
+        assertEquals(-1, scheduler.next(first, false));
+        scheduler.completed(0);
+        assertTrue(scheduler.isDone(0));
+        assertTrue(scheduler.isComplete());
+    }
+
+    @Test
+    public void failedPieceIsHandedOutAgain() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        assertEquals(0, scheduler.next(first, false));
+        assertTrue(scheduler.arrived(0, first));
+        scheduler.rejected(0, first);
+        assertTrue(scheduler.isWanted(0));
+        //Not from the source that sent it corrupt
+        assertEquals(-1, scheduler.next(first, false));
+        assertEquals(0, scheduler.next(second, false));
+    }
+
+    @Test
+    public void onlyTheFirstCopyWritesInPlace() throws InterruptedException {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        int third = scheduler.addSource(scheduler.allPieces());
+        assertEquals(0, scheduler.next(first, false));
+        assertEquals(0, scheduler.next(second, false));
+        assertTrue(scheduler.writesInPlace(0, first));
+        assertFalse(scheduler.writesInPlace(0, second));
+        //Once the writer gives up the next copy handed out writes in place, not one already on its way
+        scheduler.dropped(0, first);
+        assertFalse(scheduler.writesInPlace(0, second));
+        assertEquals(0, scheduler.next(third, false));
+        assertTrue(scheduler.writesInPlace(0, third));
+        assertFalse(scheduler.writesInPlace(0, second));
+    }
+
+    @Test
+    public void noWriteInPlaceAfterTheClaim() throws Exception {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        scheduler.next(first, false);
+        scheduler.next(second, false);
+        boolean written[] = new boolean[1];
+        assertTrue(scheduler.writeIfWanted(0, () -> written[0] = true));
+        assertTrue(written[0]);
+        assertTrue(scheduler.arrived(0, second));
+        written[0] = false;
+        assertFalse(scheduler.writeIfWanted(0, () -> written[0] = true));
+        assertFalse(written[0]);
+    }
+
+    @Test
+    public void claimWaitsForAWriteInPlace() throws Exception {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        scheduler.next(first, false);
+        scheduler.next(second, false);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<Boolean> write = threads.submit(() -> scheduler.writeIfWanted(0, () -> {
+            writing.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        Future<Boolean> claim = threads.submit(() -> scheduler.arrived(0, second));
+        try {
+            claim.get(200, TimeUnit.MILLISECONDS);
+            fail("The piece was claimed while a copy was written over it");
+        } catch (TimeoutException expected) {
+        }
+        finish.countDown();
+        assertTrue(write.get(10, TimeUnit.SECONDS));
+        assertTrue(claim.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitingSourceGetsAFailedPiece() throws Exception {
+        PieceScheduler scheduler = scheduler(1);
+        int first = scheduler.addSource(scheduler.allPieces());
+        int second = scheduler.addSource(scheduler.allPieces());
+        assertEquals(0, scheduler.next(first, false));
+        assertTrue(scheduler.arrived(0, first));
+        //Nothing to hand out while the piece is verified, but it may yet fail
+        Future<Integer> waiting = threads.submit(() -> scheduler.next(second, true));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("A piece was handed out while its only copy was verified");
+        } catch (TimeoutException expected) {
+        }
+        scheduler.failed(0);
+        assertEquals(0, (int) waiting.get(10, TimeUnit.SECONDS));
+    }
+}
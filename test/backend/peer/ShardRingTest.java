@@ -0,0 +1,107 @@
+package backend.peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Which shard the ring places each file on, and which files move when a
+ * shard is added or goes.
+ *
+ * @author hexbioc
+ */
+public class ShardRingTest {
+
+    private static final int FILES = 100000;
+
+    private static List<String> shards(int count) {
+        ArrayList<String> addresses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            addresses.add("10.0.0." + (i + 1) + ":6000");
+        }
+        return addresses;
+    }
+
+    private static String file(int i) {
+        return "file-" + i + ".dat";
+    }
+
+    @Test
+    public void singleShardOwnsEveryFile() {
+        ShardRing ring = new ShardRing(shards(1));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, ring.shardFor(file(i)));
+        }
+    }
+
+    @Test
+    public void orderOfAddressesDoesNotChangeOwners() {
+        List<String> addresses = shards(5);
+        List<String> shuffled = new ArrayList<>(addresses);
+        Collections.shuffle(shuffled, new Random(1));
+        ShardRing ring = new ShardRing(addresses);
+        ShardRing other = new ShardRing(shuffled);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(addresses.get(ring.shardFor(file(i))), shuffled.get(other.shardFor(file(i))));
+        }
+    }
+
+    @Test
+    public void filesSpreadEvenly() {
+        int shardCount = 4;
+        ShardRing ring = new ShardRing(shards(shardCount));
+        int owned[] = new int[shardCount];
+        for (int i = 0; i < FILES; i++) {
+            owned[ring.shardFor(file(i))]++;
+        }
+        for (int count : owned) {
+            //Within a third of an even share either way
+            assertTrue(Arrays.toString(owned), Math.abs(count - FILES / shardCount) < FILES / shardCount / 3);
+        }
+    }
+
+    @Test
+    public void addedShardOnlyTakesFiles() {
+        for (int shardCount = 1; shardCount <= 6; shardCount++) {
+            List<String> addresses = shards(shardCount);
+            List<String> grown = shards(shardCount + 1);
+            ShardRing ring = new ShardRing(addresses);
+            ShardRing grownRing = new ShardRing(grown);
+            int moved = 0;
+            for (int i = 0; i < FILES; i++) {
+                int before = ring.shardFor(file(i));
+                int after = grownRing.shardFor(file(i));
+                if (before != after) {
+                    //A file moves to the new shard or stays where it was, never between the old ones
+                    assertEquals(shardCount, after);
+                    moved++;
+                } else {
+                    assertEquals(addresses.get(before), grown.get(after));
+                }
+            }
+            //About 1/(N+1) of the files move
+            double expected = (double) FILES / (shardCount + 1);
+            assertTrue(shardCount + " shards: " + moved + " moved", Math.abs(moved - expected) < expected / 3);
+        }
+    }
+
+    @Test
+    public void removedShardOnlyGivesAwayItsFiles() {
+        List<String> addresses = shards(5);
+        List<String> shrunk = new ArrayList<>(addresses);
+        String removed = shrunk.remove(2);
+        ShardRing ring = new ShardRing(addresses);
+        ShardRing shrunkRing = new ShardRing(shrunk);
+        for (int i = 0; i < FILES; i++) {
+            String before = addresses.get(ring.shardFor(file(i)));
+            String after = shrunk.get(shrunkRing.shardFor(file(i)));
+            if (!before.equals(removed)) {
+                assertEquals(before, after);
+            }
+        }
+    }
+}
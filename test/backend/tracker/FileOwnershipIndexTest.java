@@ -0,0 +1,168 @@
+package backend.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Owners of one file added and removed from many threads at once, which is
+ * where the compare-and-set loops of the index retry and where an entry
+ * losing its last owner races with the next owner coming in.
+ *
+ * @author hexbioc
+ */
+public class FileOwnershipIndexTest {
+
+    private static final String FILE = "file.dat";
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 100000;
+
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        threads.shutdownNow();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    //Runs the task on every thread, all starting together, and returns their results
+    private <T> List<T> runTogether(Callable<T> task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> running = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            running.add(threads.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<>();
+        for (Future<T> result : running) {
+            results.add(result.get(60, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    @Test
+    public void concurrentAddsKeepEveryOwnerSorted() throws Exception {
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        AtomicInteger nextThread = new AtomicInteger();
+        runTogether(() -> {
+            int thread = nextThread.getAndIncrement();
+            for (int i = 0; i < 500; i++) {
+                assertTrue(index.addOwner(FILE, i * THREADS + thread, 42));
+            }
+            return null;
+        });
+        int owners[] = index.getOwners(FILE);
+        assertEquals(500 * THREADS, owners.length);
+        for (int i = 0; i < owners.length; i++) {
+            assertEquals(i, owners[i]);
+        }
+        assertEquals(42, index.getFileSize(FILE));
+        assertEquals(1, index.getFileCount());
+        assertEquals(owners.length, index.getOwnershipCount());
+    }
+
+    @Test
+    public void concurrentAddAndRemoveOnOneFile() throws Exception {
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        //A peer that stays throughout, so the entry is never dropped
+        index.addOwner(FILE, 1000, 42);
+        AtomicInteger nextThread = new AtomicInteger();
+        runTogether(() -> {
+            int peer = nextThread.getAndIncrement();
+            for (int i = 0; i < ROUNDS; i++) {
+                assertTrue(index.addOwner(FILE, peer, 42));
+                assertFalse(index.addOwner(FILE, peer, 42));
+                assertTrue(index.isOwner(FILE, peer));
+                assertTrue(index.removeOwner(FILE, peer));
+                assertFalse(index.removeOwner(FILE, peer));
+            }
+            //Each leaves every other one of the peers behind
+            if (peer % 2 == 0) {
+                assertTrue(index.addOwner(FILE, peer, 42));
+            }
+            return null;
+        });
+        assertArrayEquals(new int[]{0, 2, 4, 6, 1000}, index.getOwners(FILE));
+        assertEquals(1, index.getFileCount());
+    }
+
+    @Test
+    public void lastOwnerRemovedWhileOthersComeAndGo() throws Exception {
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        AtomicInteger nextThread = new AtomicInteger();
+        //Owners often drop to none, so entries are dropped and created again all the time
+        runTogether(() -> {
+            int peer = nextThread.getAndIncrement();
+            for (int i = 0; i < ROUNDS; i++) {
+                assertTrue(index.addOwner(FILE, peer, 42));
+                assertTrue(index.isOwner(FILE, peer));
+                assertTrue(index.removeOwner(FILE, peer));
+            }
+            return null;
+        });
+        assertEquals(0, index.getOwnerCount(FILE));
+        assertEquals(0, index.getFileCount());
+        assertEquals(0, index.getOwnershipCount());
+        //The file can be owned again afterwards
+        assertTrue(index.addOwner(FILE, 3, 7));
+        assertArrayEquals(new int[]{3}, index.getOwners(FILE));
+        assertEquals(7, index.getFileSize(FILE));
+    }
+
+    @Test
+    public void sameOwnerAddedAndRemovedOnceEach() throws Exception {
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        List<Integer> added = runTogether(() -> index.addOwner(FILE, 5, 42) ? 1 : 0);
+        assertEquals(1, added.stream().mapToInt(Integer::intValue).sum());
+        List<Integer> removed = runTogether(() -> index.removeOwner(FILE, 5) ? 1 : 0);
+        assertEquals(1, removed.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(0, index.getFileCount());
+    }
+
+    @Test
+    public void removePeersAlongsideAdds() throws Exception {
+        FileOwnershipIndex index = new FileOwnershipIndex();
+        for (int peer = 0; peer < 100; peer++) {
+            index.addOwner(FILE, peer, 42);
+        }
+        int departed[] = new int[50];
+        for (int i = 0; i < departed.length; i++) {
+            departed[i] = i * 2;
+        }
+        AtomicInteger nextThread = new AtomicInteger();
+        runTogether(() -> {
+            int thread = nextThread.getAndIncrement();
+            if (thread == 0) {
+                assertEquals(1, index.removePeers(departed));
+            } else {
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(index.addOwner(FILE, 1000 + i * THREADS + thread, 42));
+                }
+            }
+            return null;
+        });
+        int owners[] = index.getOwners(FILE);
+        assertEquals(50 + 100 * (THREADS - 1), owners.length);
+        for (int peer = 0; peer < 100; peer++) {
+            assertEquals(peer % 2 == 1, index.isOwner(FILE, peer));
+        }
+    }
+}